@@ -0,0 +1,126 @@
+package se.kth.speech.coin.tangrams.data;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Column-wise storage of referent features. Each referent of the added rounds is a row, and the referents of a round are contiguous rows.
+ */
+public class FeatureStore {
+
+	public static final int SIZE = 0;
+	public static final int RED = 1;
+	public static final int GREEN = 2;
+	public static final int BLUE = 3;
+	public static final int HUE = 4;
+	public static final int POSX = 5;
+	public static final int POSY = 6;
+	public static final int MIDX = 7;
+	public static final int MIDY = 8;
+
+	public static final int FEATURES = 9;
+
+	private final List<String> shapes;
+
+	private float[][] columns = new float[FEATURES][];
+	// Index of the shape in the shape list, or -1 for unknown shapes
+	private int[] shape;
+	private boolean[] target;
+	private int rows = 0;
+
+	// The first row of each round, followed by the total number of rows
+	private int[] roundStart = new int[17];
+	private int roundCount = 0;
+
+	/**
+	 * Creates an empty store, where shapes are stored as their index in the given list (which should not be modified)
+	 */
+	public FeatureStore(List<String> shapes) {
+		this(shapes, 256);
+	}
+
+	public FeatureStore(List<String> shapes, int capacity) {
+		this.shapes = shapes;
+		allocate(Math.max(capacity, 1));
+	}
+
+	private void allocate(int capacity) {
+		for (int f = 0; f < FEATURES; f++) {
+			columns[f] = columns[f] == null ? new float[capacity] : Arrays.copyOf(columns[f], capacity);
+		}
+		shape = shape == null ? new int[capacity] : Arrays.copyOf(shape, capacity);
+		target = target == null ? new boolean[capacity] : Arrays.copyOf(target, capacity);
+	}
+
+	/**
+	 * Appends the referents of a round, and returns the index of the round in the store
+	 */
+	public int add(Round round) {
+		if (rows + round.referents.size() > shape.length)
+			allocate(Math.max(shape.length * 2, rows + round.referents.size()));
+		if (roundCount + 2 > roundStart.length)
+			roundStart = Arrays.copyOf(roundStart, roundStart.length * 2);
+		for (Referent ref : round.referents) {
+			columns[SIZE][rows] = ref.size;
+			columns[RED][rows] = ref.red;
+			columns[GREEN][rows] = ref.green;
+			columns[BLUE][rows] = ref.blue;
+			columns[HUE][rows] = ref.hue;
+			columns[POSX][rows] = ref.posx;
+			columns[POSY][rows] = ref.posy;
+			columns[MIDX][rows] = ref.midx;
+			columns[MIDY][rows] = ref.midy;
+			shape[rows] = shapes.indexOf(ref.shape);
+			target[rows] = ref.target;
+			rows++;
+		}
+		roundStart[++roundCount] = rows;
+		return roundCount - 1;
+	}
+
+	public List<String> getShapes() {
+		return shapes;
+	}
+
+	/**
+	 * Returns the number of rows
+	 */
+	public int size() {
+		return rows;
+	}
+
+	/**
+	 * Returns the number of rounds
+	 */
+	public int getRoundCount() {
+		return roundCount;
+	}
+
+	public int getRoundStart(int round) {
+		return roundStart[round];
+	}
+
+	public int getRoundEnd(int round) {
+		return roundStart[round + 1];
+	}
+
+	/**
+	 * Returns a feature column. The array may be longer than the number of rows, and is replaced when rows are added.
+	 */
+	public float[] getColumn(int feature) {
+		return columns[feature];
+	}
+
+	public float get(int feature, int row) {
+		return columns[feature][row];
+	}
+
+	public int getShape(int row) {
+		return shape[row];
+	}
+
+	public boolean isTarget(int row) {
+		return target[row];
+	}
+
+}
@@ -0,0 +1,127 @@
+package se.kth.speech.coin.tangrams.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A positional inverted index from token ids to the rounds (and positions within the rounds) where they occur.
+ * Positions follow Round.getWordIds(), with a gap between utterances so that bigrams never span two utterances.
+ * An index covers the words of one combination of the ONLY_GIVER and ONLY_REFLANG settings, fixed when it is created.
+ */
+public class InvertedIndex {
+
+	/**
+	 * The occurrences of one word: rounds[i] (an index into the indexed list of rounds) has the positions positions[start[i]] to positions[start[i+1]-1]
+	 */
+	public static class Postings {
+
+		public int[] rounds = new int[4];
+		public int[] start = new int[5];
+		public int[] positions = new int[4];
+		public int roundCount = 0;
+		public int positionCount = 0;
+
+		private void add(int round, int position) {
+			if (roundCount == 0 || rounds[roundCount - 1] != round) {
+				if (roundCount == rounds.length) {
+					rounds = Arrays.copyOf(rounds, roundCount * 2);
+					start = Arrays.copyOf(start, roundCount * 2 + 1);
+				}
+				rounds[roundCount] = round;
+				start[roundCount] = positionCount;
+				roundCount++;
+			}
+			if (positionCount == positions.length)
+				positions = Arrays.copyOf(positions, positionCount * 2);
+			positions[positionCount++] = position;
+			start[roundCount] = positionCount;
+		}
+
+		private boolean hasPosition(int i, int position) {
+			return Arrays.binarySearch(positions, start[i], start[i + 1], position) >= 0;
+		}
+
+	}
+
+	private Postings[] postings = new Postings[0];
+
+	private int size = 0;
+
+	private final boolean onlyGiver;
+	private final boolean onlyReflang;
+
+	/**
+	 * Creates an index of the words for the given settings (see Parameters.ONLY_GIVER and ONLY_REFLANG)
+	 */
+	public InvertedIndex(boolean onlyGiver, boolean onlyReflang) {
+		this.onlyGiver = onlyGiver;
+		this.onlyReflang = onlyReflang;
+	}
+
+	/**
+	 * Adds the words of the next round. Rounds must be added in the order of the list they index.
+	 */
+	public void add(Round round) {
+		int position = 0;
+		for (Utterance utt : round.utts) {
+			if (onlyGiver && !utt.isGiver)
+				continue;
+			for (int word : onlyReflang ? utt.refIds : utt.fullIds) {
+				if (word >= postings.length)
+					postings = Arrays.copyOf(postings, Math.max(word + 1, postings.length * 2));
+				if (postings[word] == null)
+					postings[word] = new Postings();
+				postings[word].add(size, position++);
+			}
+			position++;
+		}
+		size++;
+	}
+
+	/**
+	 * Returns the number of indexed rounds
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the postings of a word, or null if it does not occur
+	 */
+	public Postings get(int word) {
+		return word >= 0 && word < postings.length ? postings[word] : null;
+	}
+
+	/**
+	 * Returns the indices of the rounds where the first word is directly followed by the second
+	 */
+	public int[] getBigramRounds(int first, int second) {
+		Postings p1 = get(first);
+		Postings p2 = get(second);
+		if (p1 == null || p2 == null)
+			return new int[0];
+		List<Integer> result = new ArrayList<>();
+		int j = 0;
+		for (int i = 0; i < p1.roundCount; i++) {
+			int round = p1.rounds[i];
+			while (j < p2.roundCount && p2.rounds[j] < round)
+				j++;
+			if (j == p2.roundCount)
+				break;
+			if (p2.rounds[j] != round)
+				continue;
+			for (int k = p1.start[i]; k < p1.start[i + 1]; k++) {
+				if (p2.hasPosition(j, p1.positions[k] + 1)) {
+					result.add(round);
+					break;
+				}
+			}
+		}
+		int[] rounds = new int[result.size()];
+		for (int i = 0; i < rounds.length; i++)
+			rounds[i] = result.get(i);
+		return rounds;
+	}
+
+}
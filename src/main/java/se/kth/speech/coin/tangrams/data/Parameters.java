@@ -4,6 +4,15 @@ public class Parameters {
 	
 	public static boolean USE_RIDGE = true;
 	
+	// Train the word models with the built-in ridge logistic regression instead of Weka's Logistic
+	public static boolean NATIVE_LOGISTIC = false;
+	
+	// Train all word models together as batched ND4J problems (see JointLogisticTrainer)
+	public static boolean JOINT_TRAINING = false;
+	
+	// Number of words per batch in joint training
+	public static int JOINT_BATCH_SIZE = 256;
+	
 	public static double RIDGE = 100;
 
 	// Only build model for words with more or equal number of instances than this
@@ -26,8 +35,52 @@ public class Parameters {
 
 	public static boolean WEIGHT_BY_POWER = false;
 
+	// Maximum error (with 95% confidence) of the variance of the scores when estimating the power from a sample of the referents (0 means all referents)
+	public static double POWER_SAMPLE_ERROR = 0;
+
+	// Number of threads used for loading sessions (1 means serial loading)
+	public static int LOAD_THREADS = 1;
+
+	// Number of threads used for training the word models (1 means serial training)
+	public static int TRAIN_THREADS = 1;
+
+	// Models with at least this many instances (rows, not weighted) sum their loss and gradient over partitions, in parallel when TRAIN_THREADS > 1
+	public static int PARALLEL_MODEL_INSTANCES = 10000;
+
+	// Number of cross-validation folds run concurrently (1 means serial folds)
+	public static int CV_THREADS = 1;
+
+	// No new cross-validation fold is started while more heap than this (in MB) is used
+	public static long CV_MEMORY_LIMIT = Runtime.getRuntime().maxMemory() / 4 * 3 / (1024 * 1024);
+
+	// In cross-validation, train once on all sessions and only retrain the words of the held-out session in each fold
+	public static boolean REUSE_FOLD_MODELS = false;
+
+	// Score with the word models compiled into a flat coefficient table (see CompiledScorer; native models give the same scores, Weka models the same up to 1e-12)
+	public static boolean COMPILED_SCORING = false;
+
+	// Maximum number of word scores cached per session, so that the words and pieces which recur between rounds are not rescored (0 means no cache)
+	public static int SCORE_CACHE_SIZE = 10000;
+
+	// A new session found by a SessionWatcher is only added once its files have been unchanged for this long
+	public static int SESSION_SETTLE_SECONDS = 60;
+
+	// Load sessions from (and save them to) a binary snapshot next to the session list or directory (off by default, since it writes into the data directory)
+	public static boolean USE_SNAPSHOT = false;
+
+	// Load trained models from (and save them to) a cache next to the training session list or directory (off by default, since it writes into the data directory)
+	public static boolean USE_MODEL_CACHE = false;
+
 	public static String getSetting() {
 		return DISCOUNT + "\t" + ONLY_REFLANG + "\t" + ONLY_GIVER + "\t" + UPDATE_MODEL + "\t" + UPDATE_WEIGHT;
 	}
 	
+	/**
+	 * Returns the settings which affect the trained models
+	 */
+	public static String getTrainingSetting() {
+		return DISCOUNT + "\t" + ONLY_REFLANG + "\t" + ONLY_GIVER + "\t" + USE_RIDGE + "\t" + RIDGE + "\t" + NATIVE_LOGISTIC + "\t" 
+				+ WEIGHT_BY_POWER + "\t" + POWER_SAMPLE_ERROR + "\t" + JOINT_TRAINING + "\t" + JOINT_BATCH_SIZE + "\t" + PARALLEL_MODEL_INSTANCES;
+	}
+	
 }
@@ -1,6 +1,7 @@
 package se.kth.speech.coin.tangrams.data;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 public class Referent {
 
@@ -20,7 +21,8 @@ public class Referent {
 	
 	public float mentioned = 0f;
 	
-	public static Set<String> shapes = new HashSet<>();
+	// Sorted and thread-safe, since sessions may be loaded in parallel
+	public static Set<String> shapes = new ConcurrentSkipListSet<>();
 	
 	public Referent() {	
 	}
@@ -45,6 +47,23 @@ public class Referent {
 		this.hue = Float.parseFloat(cols[16]);
 		setPos(Float.parseFloat(cols[19]), Float.parseFloat(cols[20]));
 	}
+
+	/**
+	 * Reads the referent from the current row of an events file, parsing only the columns that are used
+	 */
+	public Referent(TsvReader row) {
+		this.id = row.getInt(6);
+		this.round = row.getInt(1);
+		this.target = row.getBoolean(7);
+		this.shape = row.getString(9).intern();
+		shapes.add(shape);
+		this.size = row.getFloat(11);
+		this.red = row.getFloat(12) / 255f;
+		this.green = row.getFloat(13) / 255f;
+		this.blue = row.getFloat(14) / 255f;
+		this.hue = row.getFloat(16);
+		setPos(row.getFloat(19), row.getFloat(20));
+	}
 	
 	@Override
 	public String toString() {
@@ -14,16 +14,38 @@ public class Round {
 	
 	static Random random = new Random(5);
 	
+	// Cached word views, indexed by the ONLY_GIVER and ONLY_REFLANG settings
+	private final View[] views = new View[4];
+	
+	Round() {
+	}
+	
+	/**
+	 * Creates a copy with its own weight, which shares the utterances and referents of the original
+	 */
+	public Round(Round toCopy) {
+		this.session = toCopy.session;
+		this.n = toCopy.n;
+		this.utts = toCopy.utts;
+		this.referents = toCopy.referents;
+		this.target = toCopy.target;
+		this.weight = toCopy.weight;
+		System.arraycopy(toCopy.views, 0, views, 0, views.length);
+	}
+	
 	/**
 	 * Checks if the round has a specific word
 	 */
 	public boolean hasWord(String hasWord) {
-		for (String word : getWords()) {
-			if (word.equals(hasWord)) {
-				return true;
-			}
-		}
-		return false;
+		int id = TokenDictionary.lookup(hasWord);
+		return id >= 0 && hasWord(id);
+	} 
+	
+	/**
+	 * Checks if the round has a specific word, given its token id
+	 */
+	public boolean hasWord(int hasWord) {
+		return Arrays.binarySearch(getUniqueWordIds(), hasWord) >= 0;
 	} 
 	
 	public boolean hasBigram(String hasWord) {
@@ -38,11 +60,11 @@ public class Round {
 	}
 
 	/**
-	 * Checks if the round has a word which is not part of the provided collection of words
+	 * Checks if the round has a word which is not part of the provided vocabulary
 	 */
-	public boolean hasDiscount(Collection<String> words) {
-		for (String word : getWords()) {
-			if (!words.contains(word)) {
+	public boolean hasDiscount(Vocabulary vocab) {
+		for (int word : getWordIds()) {
+			if (!vocab.has(word)) {
 				return true;
 			}
 		}
@@ -50,29 +72,95 @@ public class Round {
 	}
 
 	/**
-	 * Returns a list of words that have been used in this round
+	 * Returns a list of words that have been used in this round. The list is cached and cannot be modified.
 	 */
 	public List<String> getWords() {
-		List<String> list = new ArrayList<>();
-		for (Utterance utt : utts) {
-			if (Parameters.ONLY_GIVER && !utt.isGiver)
-				continue;
-			String[] words;
-			if (Parameters.ONLY_REFLANG) 
-				words = utt.refText;
-			else
-				words = utt.fullText;
-			for (String word : words) {
-				list.add(word);
-			}
-		}
-		return list;
+		return getView().words;
 	}
 
+	/**
+	 * Returns the token ids of the words that have been used in this round. The array is cached and must not be modified.
+	 */
+	public int[] getWordIds() {
+		return getView().ids;
+	}
+
+	/**
+	 * Returns the distinct words that have been used in this round. The collection is cached and cannot be modified.
+	 */
 	public Collection<String> getUniqueWords() {
-		HashSet<String> words = new HashSet<String>();
-		words.addAll(getWords());
-		return words;
+		return getView().uniqueWords;
+	}
+
+	/**
+	 * Returns the sorted, distinct token ids of the words that have been used in this round. The array is cached and must not be modified.
+	 */
+	public int[] getUniqueWordIds() {
+		return getView().uniqueIds;
+	}
+
+	/**
+	 * Returns the view of the words for the current ONLY_GIVER and ONLY_REFLANG settings.
+	 * Views are computed on first use, so utterances must not be added to the round after that.
+	 */
+	private View getView() {
+		int variant = (Parameters.ONLY_GIVER ? 2 : 0) + (Parameters.ONLY_REFLANG ? 1 : 0);
+		View view = views[variant];
+		if (view == null) {
+			view = new View(utts, Parameters.ONLY_GIVER, Parameters.ONLY_REFLANG);
+			views[variant] = view;
+		}
+		return view;
+	}
+
+	/**
+	 * The words of a round for one combination of speaker and referring language settings.
+	 * The fields are final, so that a view is safely published to other threads.
+	 */
+	private static class View {
+
+		final int[] ids;
+		final int[] uniqueIds;
+		final List<String> words;
+		final List<String> uniqueWords;
+
+		View(List<Utterance> utts, boolean onlyGiver, boolean onlyReflang) {
+			int size = 0;
+			for (Utterance utt : utts) {
+				if (onlyGiver && !utt.isGiver)
+					continue;
+				size += (onlyReflang ? utt.refIds : utt.fullIds).length;
+			}
+			int[] ids = new int[size];
+			int i = 0;
+			for (Utterance utt : utts) {
+				if (onlyGiver && !utt.isGiver)
+					continue;
+				int[] words = onlyReflang ? utt.refIds : utt.fullIds;
+				System.arraycopy(words, 0, ids, i, words.length);
+				i += words.length;
+			}
+			int[] unique = ids.clone();
+			Arrays.sort(unique);
+			int n = 0;
+			for (int j = 0; j < unique.length; j++) {
+				if (n == 0 || unique[n-1] != unique[j])
+					unique[n++] = unique[j];
+			}
+			this.ids = ids;
+			this.uniqueIds = Arrays.copyOf(unique, n);
+			this.words = toWords(this.ids);
+			this.uniqueWords = toWords(this.uniqueIds);
+		}
+
+		private static List<String> toWords(int[] ids) {
+			String[] words = new String[ids.length];
+			for (int i = 0; i < ids.length; i++) {
+				words[i] = TokenDictionary.word(ids[i]);
+			}
+			return Collections.unmodifiableList(Arrays.asList(words));
+		}
+
 	}
 
 	public String prettyDialog(boolean newline) {
@@ -3,7 +3,8 @@ package se.kth.speech.coin.tangrams.data;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
@@ -14,6 +15,14 @@ public class RoundSet {
 
 	public List<Round> rounds = new ArrayList<>();
 	
+	// The inverted indices, indexed by the ONLY_GIVER and ONLY_REFLANG settings (as the word views of Round)
+	private final InvertedIndex[] indices = new InvertedIndex[4];
+	
+	private FeatureStore features;
+	
+	// The shapes of the feature store, or null for the current Referent.shapes
+	private List<String> shapes;
+	
 	public RoundSet(SessionSet set) {
 		for (Session sess : set.sessions) {
 			this.rounds.addAll(sess.rounds);
@@ -27,16 +36,82 @@ public class RoundSet {
 		this.rounds = rounds;
 	}
 	
+	/**
+	 * Creates a round set whose feature store uses the given shapes (e.g. those of another round set, so that models trained on one can score the other)
+	 */
+	public RoundSet(List<Round> rounds, List<String> shapes) {
+		this.rounds = rounds;
+		this.shapes = shapes;
+	}
+	
+	/**
+	 * Returns the inverted index of the rounds for the current ONLY_GIVER and ONLY_REFLANG settings. 
+	 * Rounds which have been appended to the list since the last call are added to the index.
+	 */
+	public synchronized InvertedIndex getIndex() {
+		int variant = (Parameters.ONLY_GIVER ? 2 : 0) + (Parameters.ONLY_REFLANG ? 1 : 0);
+		InvertedIndex index = indices[variant];
+		if (index == null || index.size() > rounds.size()) {
+			index = new InvertedIndex(Parameters.ONLY_GIVER, Parameters.ONLY_REFLANG);
+			indices[variant] = index;
+		}
+		while (index.size() < rounds.size())
+			index.add(rounds.get(index.size()));
+		return index;
+	}
+	
+	/**
+	 * Returns the referent features of the rounds, with the rounds in the same order as in the list. 
+	 * Rounds which have been appended to the list since the last call are added to the store.
+	 */
+	public synchronized FeatureStore getFeatures() {
+		if (features == null || features.getRoundCount() > rounds.size())
+			features = new FeatureStore(shapes != null ? shapes : Collections.unmodifiableList(new ArrayList<>(Referent.shapes)));
+		while (features.getRoundCount() < rounds.size())
+			features.add(rounds.get(features.getRoundCount()));
+		return features;
+	}
+	
+	/**
+	 * Returns the indices of the rounds where a word (token id) occurs. Words containing a space are looked up as bigrams.
+	 */
+	public int[] getRoundIndices(int word) {
+		InvertedIndex index = getIndex();
+		String string = TokenDictionary.word(word);
+		int space = string.indexOf(' ');
+		if (space >= 0) {
+			int first = TokenDictionary.lookup(string.substring(0, space));
+			int second = TokenDictionary.lookup(string.substring(space + 1));
+			return index.getBigramRounds(first, second);
+		} else {
+			InvertedIndex.Postings postings = index.get(word);
+			if (postings == null)
+				return new int[0];
+			return Arrays.copyOf(postings.rounds, postings.roundCount);
+		}
+	}
+	
+	/**
+	 * Returns the rounds where a word (token id) occurs. Words containing a space are looked up as bigrams.
+	 */
+	public List<Round> getRounds(int word) {
+		List<Round> result = new ArrayList<>();
+		for (int i : getRoundIndices(word)) {
+			result.add(rounds.get(i));
+		}
+		return result;
+	}
+	
 	public Vocabulary getNormalizedVocabulary() {
 		Vocabulary vocab = new Vocabulary();
 		for (Round round : rounds) {
-			Set<String> words = new HashSet<>();
+			Set<Integer> words = new HashSet<>();
 			for (Utterance utt : round.utts) {
-				for (String word : utt.getNormalizedWords()) {
+				for (int word : utt.getNormalizedIds()) {
 					words.add(word);
 				}
 			}
-			for (String word : words) {
+			for (int word : words) {
 				vocab.add(word);
 			}
 		}
@@ -45,17 +120,19 @@ public class RoundSet {
 	}
 
 	public Vocabulary getVocabulary() {
+		Vocabulary vocab = getWordCounts();
+		vocab.prune(Parameters.DISCOUNT);
+		return vocab;
+	} 
+
+	/**
+	 * Returns the number of rounds each word occurs in, without pruning
+	 */
+	public Vocabulary getWordCounts() {
 		Vocabulary vocab = new Vocabulary();
 		for (Round round : rounds) {
-			Set<String> words = new HashSet<>();
-			for (String word : round.getWords()) {
-				words.add(word);
-			}
-			for (String word : words) {
-				vocab.add(word);
-			}
+			vocab.addAll(round.getUniqueWordIds());
 		}
-		vocab.prune(Parameters.DISCOUNT);
 		return vocab;
 	} 
 
@@ -120,10 +197,10 @@ public class RoundSet {
 	}
 	*/
 
-	public List<Referent> getDiscountExamples(Collection<String> words) {
+	public List<Referent> getDiscountExamples(Vocabulary vocab) {
 		List<Referent> result = new ArrayList<>();
 		for (Round round : rounds) {
-			if (round.hasDiscount(words)) {
+			if (round.hasDiscount(vocab)) {
 				result.addAll(round.referents);
 			}
 		}
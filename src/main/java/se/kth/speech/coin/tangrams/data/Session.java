@@ -1,7 +1,6 @@
 package se.kth.speech.coin.tangrams.data;
 
 import java.io.*;
-import java.nio.file.Files;
 import java.util.*;
 
 public class Session {
@@ -9,40 +8,55 @@ public class Session {
 	public List<Round> rounds = new ArrayList<>();
 	public String name;
 	
+	Session(String name) {
+		this.name = name;
+	}
+	
+	/**
+	 * Creates a copy with copies of the rounds, so that the round weights can be changed without affecting the original
+	 */
+	public Session(Session toCopy) {
+		this.name = toCopy.name;
+		for (Round round : toCopy.rounds) {
+			Round copy = new Round(round);
+			copy.session = this;
+			rounds.add(copy);
+		}
+	}
+	
 	public Session(File dir) throws IOException {
 		this.name = dir.getName();
-		int i = 0;
 		Round round = null;
 		boolean AisGiver = false;
-		for (String line : Files.readAllLines(new File(dir, "extracted-referring-tokens.tsv").toPath())) {
-			if (i++ == 0) 
-				continue;
-			line = line.trim();
-			Utterance utt = new Utterance(line);
-			
-			if (round == null || round.n != utt.round) {
-				round = new Round();
-				round.session = this;
-				round.n = utt.round;
-				rounds.add(round);
-				AisGiver = !AisGiver;
+		try (TsvReader reader = new TsvReader(new File(dir, "extracted-referring-tokens.tsv"))) {
+			// Skip the header
+			reader.next();
+			while (reader.next()) {
+				Utterance utt = new Utterance(reader);
+				
+				if (round == null || round.n != utt.round) {
+					round = new Round();
+					round.session = this;
+					round.n = utt.round;
+					rounds.add(round);
+					AisGiver = !AisGiver;
+				}
+				if (utt.fullText.length < 1)
+					throw new RuntimeException("Round " + round.n + " in session " + dir + " has no words");
+						
+				utt.setRole(AisGiver);
+				round.utts.add(utt);
 			}
-			if (utt.fullText.length < 1)
-				throw new RuntimeException("Round " + round.n + " in session " + dir + " has no words");
-					
-			utt.setRole(AisGiver);
-			round.utts.add(utt);
 		}
 		Map<Integer,Integer> mentioned = new HashMap<>();
-		i = 0;
-		for (String line : Files.readAllLines(new File(dir, "events.tsv").toPath())) {
-			if (i++ == 0) 
-				continue;
-			line = line.trim();
-			String[] cols = line.split("\t");
-			if (cols[4].equals("nextturn.request")) {
+		try (TsvReader reader = new TsvReader(new File(dir, "events.tsv"))) {
+			reader.next();
+			while (reader.next()) {
+				// Most events are not turn requests, so check the type before parsing anything else
+				if (!reader.columnEquals(4, "nextturn.request"))
+					continue;
 				
-				Referent referent = new Referent(cols);
+				Referent referent = new Referent(reader);
 				referent.mentioned = mentioned.getOrDefault(referent.id, 0);
 				round = getRound(referent.round);
 				if (round == null) {
@@ -3,22 +3,41 @@ package se.kth.speech.coin.tangrams.data;
 import java.io.*;
 import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 
 public class SessionSet {
 	
 	public List<Session> sessions = new ArrayList<>(); 
 	
+	// The file or directory the sessions were loaded from, the session directories, and the sessions as loaded (to detect changes to the list)
+	private File source;
+	private List<File> sessionDirs;
+	private List<Session> loaded;
+	
 	public SessionSet(File dir) throws IOException {
+		this(dir, Parameters.LOAD_THREADS);
+	}
+
+	/**
+	 * Loads the sessions using the given number of threads. The sessions are kept in the same order as when loading them serially.
+	 * If Parameters.USE_SNAPSHOT is set, the sessions are read from a snapshot when the session files have not changed since it was written.
+	 */
+	public SessionSet(File dir, int threads) throws IOException {
+		List<File> sessionDirs = new ArrayList<>();
 		if (dir.isDirectory()) {
 			if (new File(dir, "events.tsv").exists()) {
-				sessions.add(new Session(dir));
+				sessionDirs.add(dir);
 			} else {
 				for (File subdir : dir.listFiles()) {
 					if (subdir.isDirectory() && new File(subdir, "events.tsv").exists() && new File(subdir, "extracted-referring-tokens.tsv").exists()) {
 						//System.out.println(subdir);
-						Session session = new Session(subdir);
-						sessions.add(session);
+						sessionDirs.add(subdir);
 					}
 				} 
 			}
@@ -26,11 +45,44 @@ public class SessionSet {
 			for (String f : Files.readAllLines(dir.toPath())) {
 				f = f.trim();
 				if (f.length() > 0) {
-				Session session = new Session(new File(dir.getParentFile(), f));
-				sessions.add(session);
+					sessionDirs.add(new File(dir.getParentFile(), f));
+				}
+			}
+		}
+		if (Parameters.USE_SNAPSHOT) {
+			File snapshot = SessionSnapshot.getFile(dir);
+			byte[] digest = SessionSnapshot.digest(sessionDirs);
+			List<Session> cached = SessionSnapshot.read(snapshot, digest);
+			if (cached != null) {
+				sessions = cached;
+			} else {
+				load(sessionDirs, threads);
+				try {
+					SessionSnapshot.write(snapshot, digest, sessions);
+				} catch (IOException e) {
+					System.err.println("Could not write session snapshot " + snapshot + ": " + e);
 				}
 			}
+		} else {
+			load(sessionDirs, threads);
 		}
+		this.source = dir;
+		this.sessionDirs = sessionDirs;
+		this.loaded = new ArrayList<>(sessions);
+	}
+	
+	/**
+	 * Returns the file or directory the sessions were loaded from, or null if the set was not loaded from files or its sessions have been changed since
+	 */
+	public File getSource() {
+		return loaded != null && loaded.equals(sessions) ? source : null;
+	}
+	
+	/**
+	 * Returns a digest of the files the sessions were loaded from (see SessionSnapshot.digest), or null if getSource() is null
+	 */
+	public byte[] getDigest() throws IOException {
+		return getSource() != null ? SessionSnapshot.digest(sessionDirs) : null;
 	}
 	
 	public SessionSet(SessionSet toCopy) {
@@ -41,6 +93,93 @@ public class SessionSet {
 		sessions.add(session);
 	}
 
+	private void load(List<File> sessionDirs, int threads) throws IOException {
+		if (threads <= 1 || sessionDirs.size() <= 1) {
+			for (File sessionDir : sessionDirs) {
+				sessions.add(new Session(sessionDir));
+			}
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, sessionDirs.size()));
+		try {
+			List<Future<Session>> futures = new ArrayList<>();
+			for (File sessionDir : sessionDirs) {
+				futures.add(executor.submit(() -> new Session(sessionDir)));
+			}
+			// Collect in submission order, so that the result does not depend on scheduling
+			for (Future<Session> future : futures) {
+				sessions.add(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while loading sessions");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new IOException(cause);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Starts watching a data root, so that new sessions are added to this set as they are completed (see SessionWatcher.poll)
+	 */
+	public SessionWatcher watch(File root) throws IOException {
+		return new SessionWatcher(this, root);
+	}
+
+	/**
+	 * Performs leave-one-session-out cross-validation, with up to the given number of folds running concurrently.
+	 * The results of the folds are passed to merge in fold order, on the calling thread, so the merged result does not depend on scheduling.
+	 * No fold is started while the heap usage is above memoryLimit (in bytes) and other folds are still running.
+	 * Each fold gets its own copy of the testing session, since the rounds of other folds' training sets are shared.
+	 */
+	public <T> void crossValidate(BiFunction<SessionSet,Session,T> fold, Consumer<T> merge, int threads, long memoryLimit) throws Exception {
+		if (threads <= 1) {
+			for (int i = 0; i < sessions.size(); i++) {
+				SessionSet training = new SessionSet(this);
+				Session testing = new Session(training.sessions.remove(i));
+				merge.accept(fold.apply(training, testing));
+			}
+			return;
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<T>> futures = new ArrayList<>();
+		int merged = 0;
+		try {
+			for (int i = 0; i < sessions.size(); i++) {
+				// Wait for the oldest fold while all threads are busy, or while the memory is used up
+				while (futures.size() - merged >= threads || (futures.size() > merged && usedMemory() > memoryLimit)) {
+					merge.accept(futures.get(merged++).get());
+				}
+				SessionSet training = new SessionSet(this);
+				Session testing = new Session(training.sessions.remove(i));
+				futures.add(executor.submit(() -> fold.apply(training, testing)));
+			}
+			while (merged < futures.size()) {
+				merge.accept(futures.get(merged++).get());
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			throw e;
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
 	public void crossValidate(BiConsumer<SessionSet,Session> consumer) {
 		for (int i = 0; i < sessions.size(); i++) {
 			SessionSet training = new SessionSet(this);
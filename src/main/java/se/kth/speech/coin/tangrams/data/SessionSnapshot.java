@@ -0,0 +1,248 @@
+package se.kth.speech.coin.tangrams.data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * A binary snapshot of parsed sessions, which is read in one block and decoded without tokenizing the TSV files again.
+ * The snapshot stores a digest of the session files (paths, sizes and modification times), and is ignored when they have changed.
+ * A truncated or corrupt snapshot is ignored too, so that the sessions are parsed from the session files.
+ */
+public class SessionSnapshot {
+
+	private static final int MAGIC = 0x54475353;
+
+	// Increase when the format changes, so that old snapshots are rebuilt
+	private static final int VERSION = 1;
+
+	private static final String[] SESSION_FILES = {"events.tsv", "extracted-referring-tokens.tsv"};
+
+	/**
+	 * Returns the snapshot file for a session directory or session list file
+	 */
+	public static File getFile(File source) {
+		if (source.isDirectory())
+			return new File(source, ".sessions.snapshot");
+		else
+			return new File(source.getAbsoluteFile().getParentFile(), source.getName() + ".snapshot");
+	}
+
+	/**
+	 * Computes a digest of the files that the sessions are parsed from
+	 */
+	public static byte[] digest(List<File> sessionDirs) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		ByteBuffer buf = ByteBuffer.allocate(16);
+		for (File dir : sessionDirs) {
+			md.update(dir.getAbsolutePath().getBytes(StandardCharsets.UTF_8));
+			for (String name : SESSION_FILES) {
+				File file = new File(dir, name);
+				buf.clear();
+				buf.putLong(file.length()).putLong(file.lastModified());
+				md.update(buf.array());
+			}
+		}
+		return md.digest();
+	}
+
+	/**
+	 * Reads the sessions from a snapshot, or returns null if there is no valid snapshot for the digest
+	 */
+	public static List<Session> read(File file, byte[] digest) throws IOException {
+		if (!file.isFile())
+			return null;
+		ByteBuffer buf;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			// Check the header before reading the rest, so that stale snapshots are rejected cheaply
+			ByteBuffer header = ByteBuffer.allocate(9 + digest.length);
+			while (header.hasRemaining() && channel.read(header) >= 0);
+			header.flip();
+			if (header.remaining() < header.capacity() || header.getInt() != MAGIC || header.getInt() != VERSION || header.get() != digest.length)
+				return null;
+			for (byte b : digest) {
+				if (header.get() != b)
+					return null;
+			}
+			long size = channel.size() - header.capacity();
+			if (size > Integer.MAX_VALUE)
+				return null;
+			buf = ByteBuffer.allocate((int) size);
+			while (buf.hasRemaining() && channel.read(buf) >= 0);
+			buf.flip();
+		}
+		try {
+			return readSessions(buf);
+		} catch (RuntimeException e) {
+			// Truncated or corrupt snapshot (e.g. BufferUnderflowException, or an invalid index or count)
+			return null;
+		}
+	}
+
+	/**
+	 * Reads a count of items which take at least the given number of bytes each, and checks it against the remaining bytes
+	 */
+	private static int readCount(ByteBuffer buf, int itemBytes) {
+		int count = buf.getInt();
+		if (count < 0 || (long) count * itemBytes > buf.remaining())
+			throw new IllegalStateException("Invalid count " + count);
+		return count;
+	}
+
+	private static List<Session> readSessions(ByteBuffer buf) {
+		String[] strings = new String[readCount(buf, 4)];
+		for (int i = 0; i < strings.length; i++) {
+			byte[] bytes = new byte[readCount(buf, 1)];
+			buf.get(bytes);
+			strings[i] = new String(bytes, StandardCharsets.UTF_8);
+		}
+		List<Session> sessions = new ArrayList<>();
+		// Only registered once the whole snapshot has been decoded, so that a corrupt snapshot leaves no shapes behind
+		Set<String> shapes = new HashSet<>();
+		int sessionCount = readCount(buf, 8);
+		for (int s = 0; s < sessionCount; s++) {
+			Session session = new Session(strings[buf.getInt()]);
+			int roundCount = readCount(buf, 16);
+			for (int r = 0; r < roundCount; r++) {
+				Round round = new Round();
+				round.session = session;
+				round.n = buf.getInt();
+				int uttCount = readCount(buf, 13);
+				for (int u = 0; u < uttCount; u++) {
+					Utterance utt = new Utterance();
+					utt.round = round.n;
+					utt.speaker = strings[buf.getInt()];
+					utt.isGiver = buf.get() != 0;
+					utt.fullText = readTokens(buf, strings);
+					utt.refText = readTokens(buf, strings);
+					utt.intern();
+					round.utts.add(utt);
+				}
+				int refCount = readCount(buf, 45);
+				for (int i = 0; i < refCount; i++) {
+					Referent ref = new Referent();
+					ref.id = buf.getInt();
+					ref.round = buf.getInt();
+					ref.target = buf.get() != 0;
+					ref.shape = strings[buf.getInt()];
+					shapes.add(ref.shape);
+					ref.size = buf.getFloat();
+					ref.red = buf.getFloat();
+					ref.green = buf.getFloat();
+					ref.blue = buf.getFloat();
+					ref.hue = buf.getFloat();
+					ref.setPos(buf.getFloat(), buf.getFloat());
+					ref.mentioned = buf.getFloat();
+					round.referents.add(ref);
+				}
+				int target = buf.getInt();
+				if (target != -1)
+					round.target = round.referents.get(target);
+				session.rounds.add(round);
+			}
+			sessions.add(session);
+		}
+		Referent.shapes.addAll(shapes);
+		return sessions;
+	}
+
+	private static String[] readTokens(ByteBuffer buf, String[] strings) {
+		String[] tokens = new String[readCount(buf, 4)];
+		for (int i = 0; i < tokens.length; i++) {
+			tokens[i] = strings[buf.getInt()];
+		}
+		return tokens;
+	}
+
+	/**
+	 * Writes the sessions to a snapshot. The snapshot is written to a temporary file first, so that readers never see a partial snapshot.
+	 */
+	public static void write(File file, byte[] digest, List<Session> sessions) throws IOException {
+		Map<String,Integer> strings = new LinkedHashMap<>();
+		for (Session session : sessions) {
+			index(strings, session.name);
+			for (Round round : session.rounds) {
+				for (Utterance utt : round.utts) {
+					index(strings, utt.speaker);
+					for (String word : utt.fullText)
+						index(strings, word);
+					for (String word : utt.refText)
+						index(strings, word);
+				}
+				for (Referent ref : round.referents) {
+					index(strings, ref.shape);
+				}
+			}
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeByte(digest.length);
+			out.write(digest);
+			out.writeInt(strings.size());
+			for (String string : strings.keySet()) {
+				byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			out.writeInt(sessions.size());
+			for (Session session : sessions) {
+				out.writeInt(strings.get(session.name));
+				out.writeInt(session.rounds.size());
+				for (Round round : session.rounds) {
+					out.writeInt(round.n);
+					out.writeInt(round.utts.size());
+					for (Utterance utt : round.utts) {
+						out.writeInt(strings.get(utt.speaker));
+						out.writeByte(utt.isGiver ? 1 : 0);
+						writeTokens(out, strings, utt.fullText);
+						writeTokens(out, strings, utt.refText);
+					}
+					out.writeInt(round.referents.size());
+					for (Referent ref : round.referents) {
+						out.writeInt(ref.id);
+						out.writeInt(ref.round);
+						out.writeByte(ref.target ? 1 : 0);
+						out.writeInt(strings.get(ref.shape));
+						out.writeFloat(ref.size);
+						out.writeFloat(ref.red);
+						out.writeFloat(ref.green);
+						out.writeFloat(ref.blue);
+						out.writeFloat(ref.hue);
+						out.writeFloat(ref.posx);
+						out.writeFloat(ref.posy);
+						out.writeFloat(ref.mentioned);
+					}
+					out.writeInt(round.referents.indexOf(round.target));
+				}
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static void index(Map<String,Integer> strings, String string) {
+		if (!strings.containsKey(string))
+			strings.put(string, strings.size());
+	}
+
+	private static void writeTokens(DataOutputStream out, Map<String,Integer> strings, String[] tokens) throws IOException {
+		out.writeInt(tokens.length);
+		for (String token : tokens) {
+			out.writeInt(strings.get(token));
+		}
+	}
+
+}
@@ -0,0 +1,156 @@
+package se.kth.speech.coin.tangrams.data;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a data root for new session directories, and adds them to a SessionSet once they are complete:
+ * they have both events.tsv and extracted-referring-tokens.tsv, the sizes and modification times of the files have not changed
+ * for Parameters.SESSION_SETTLE_SECONDS (and not between two polls), and they can be parsed.
+ * Only new directories are parsed, so the cost of an update is proportional to the new data.
+ * Hidden directories (e.g. caches) are ignored, and directories which are complete but cannot be parsed,
+ * or which have been incomplete and unchanged for a day, are no longer watched.
+ */
+public class SessionWatcher implements Closeable {
+
+	private final Path root;
+	private final SessionSet set;
+	private final WatchService watcher;
+
+	// Names of the session directories which are already in the set
+	private final Set<String> known = new HashSet<>();
+
+	// Incomplete directories which have not changed for this long are no longer watched
+	private static final long IDLE_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+	// Directories which are not complete yet, and the directories among them which have changed since the last poll
+	private final Map<Path,WatchKey> pending = new LinkedHashMap<>();
+	private final Set<Path> changed = new LinkedHashSet<>();
+
+	// The sizes and modification times of the session files of the pending directories at the last poll, and since when they have been unchanged
+	private final Map<Path,List<Long>> signatures = new HashMap<>();
+	private final Map<Path,Long> unchangedSince = new HashMap<>();
+
+	public SessionWatcher(SessionSet set, File root) throws IOException {
+		this.set = set;
+		this.root = root.toPath();
+		for (Session session : set.sessions) {
+			known.add(session.name);
+		}
+		watcher = this.root.getFileSystem().newWatchService();
+		this.root.register(watcher, ENTRY_CREATE, ENTRY_MODIFY);
+		scanRoot();
+	}
+
+	/**
+	 * Looks for session directories which are not in the set, e.g. because they were incomplete when it was loaded
+	 */
+	private void scanRoot() throws IOException {
+		try (DirectoryStream<Path> dirs = Files.newDirectoryStream(root)) {
+			for (Path dir : dirs) {
+				addPending(dir);
+			}
+		}
+	}
+
+	private void addPending(Path dir) throws IOException {
+		String name = dir.getFileName().toString();
+		if (name.startsWith(".") || !Files.isDirectory(dir) || known.contains(name))
+			return;
+		if (!pending.containsKey(dir))
+			pending.put(dir, dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY));
+		changed.add(dir);
+	}
+
+	/**
+	 * Stops watching a pending directory
+	 */
+	private void drop(Path dir) {
+		pending.remove(dir).cancel();
+		changed.remove(dir);
+		signatures.remove(dir);
+		unchangedSince.remove(dir);
+	}
+
+	/**
+	 * Returns the sizes and modification times of the session files of a directory, or null if one of them is missing
+	 */
+	private static List<Long> signature(File dir) {
+		File events = new File(dir, "events.tsv");
+		File tokens = new File(dir, "extracted-referring-tokens.tsv");
+		if (!events.isFile() || !tokens.isFile())
+			return null;
+		return Arrays.asList(events.length(), events.lastModified(), tokens.length(), tokens.lastModified());
+	}
+
+	/**
+	 * Returns the number of directories which are watched until they are complete
+	 */
+	public int getPendingCount() {
+		return pending.size();
+	}
+
+	/**
+	 * Waits up to the timeout for changes, and returns the sessions which have been completed since the last call.
+	 * Since a session is only complete when its files have not changed between two polls, it is returned by the second poll after it was written.
+	 * The new sessions are also added to the session set.
+	 */
+	public List<Session> poll(long timeout, TimeUnit unit) throws IOException, InterruptedException {
+		WatchKey key = watcher.poll(timeout, unit);
+		while (key != null) {
+			Path dir = (Path) key.watchable();
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW) {
+					scanRoot();
+				} else if (dir.equals(root)) {
+					addPending(root.resolve((Path) event.context()));
+				} else if (pending.containsKey(dir)) {
+					changed.add(dir);
+				}
+			}
+			if (!key.reset() && pending.containsKey(dir))
+				drop(dir);
+			key = watcher.poll();
+		}
+		List<Session> sessions = new ArrayList<>();
+		long now = System.currentTimeMillis();
+		for (Path dir : new ArrayList<>(pending.keySet())) {
+			File file = dir.toFile();
+			List<Long> signature = signature(file);
+			if (signature == null) {
+				signatures.remove(dir);
+				unchangedSince.remove(dir);
+				if (!changed.contains(dir) && now - file.lastModified() > IDLE_MILLIS)
+					drop(dir);
+				continue;
+			}
+			// A session which is still being written may parse, so wait until its files have stopped changing
+			if (changed.contains(dir) || !signature.equals(signatures.put(dir, signature))) {
+				unchangedSince.put(dir, now);
+				continue;
+			}
+			if (now - unchangedSince.get(dir) < TimeUnit.SECONDS.toMillis(Parameters.SESSION_SETTLE_SECONDS))
+				continue;
+			try {
+				sessions.add(new Session(file));
+				known.add(file.getName());
+			} catch (IOException | RuntimeException e) {
+				System.err.println("Ignoring " + file + ": " + e);
+			}
+			drop(dir);
+		}
+		changed.clear();
+		set.sessions.addAll(sessions);
+		return sessions;
+	}
+
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+	}
+
+}
@@ -0,0 +1,102 @@
+package se.kth.speech.coin.tangrams.data;
+
+/**
+ * Expands contractions in a single pass, using a table of rules indexed by their first character.
+ * The result is the same as applying the rules one after another with String.replaceAll, in table order.
+ */
+public class TextNormalizer {
+
+	private static class Rule {
+
+		final String pattern;
+		final String replacement;
+		// Whether the pattern must be followed by a word boundary (\b)
+		final boolean boundary;
+
+		Rule(String pattern, String replacement, boolean boundary) {
+			this.pattern = pattern;
+			this.replacement = replacement;
+			this.boundary = boundary;
+		}
+
+	}
+
+	// In order of precedence
+	private static final Rule[] RULES = {
+			new Rule("'s", " is", true),
+			new Rule("'ve", " have", true),
+			new Rule("'re", " are", true),
+			new Rule("'d", " would", true),
+			new Rule("'ll", " will", true),
+			new Rule("can't", "can not", false),
+			new Rule("n't", " not", true),
+			new Rule("i'm", "i am", false),
+			//new Rule("mm-hmm", "okay", false),
+			//new Rule("mm-kay", "okay", false),
+			new Rule("'kay", "okay", false),
+			//new Rule("cucurucu", "cock", false),
+	};
+
+	// The rules which can match at a character, by the character (ASCII only)
+	private static final Rule[][] RULES_BY_CHAR = new Rule[128][];
+
+	static {
+		for (char c = 0; c < RULES_BY_CHAR.length; c++) {
+			int n = 0;
+			for (Rule rule : RULES) {
+				if (rule.pattern.charAt(0) == c)
+					n++;
+			}
+			if (n > 0) {
+				RULES_BY_CHAR[c] = new Rule[n];
+				n = 0;
+				for (Rule rule : RULES) {
+					if (rule.pattern.charAt(0) == c)
+						RULES_BY_CHAR[c][n++] = rule;
+				}
+			}
+		}
+	}
+
+	public static String normalize(String text) {
+		StringBuilder sb = null;
+		int copied = 0;
+		int i = 0;
+		while (i < text.length()) {
+			Rule rule = match(text, i);
+			if (rule == null) {
+				i++;
+				continue;
+			}
+			if (sb == null)
+				sb = new StringBuilder(text.length() + 16);
+			sb.append(text, copied, i).append(rule.replacement);
+			i += rule.pattern.length();
+			copied = i;
+		}
+		if (sb == null)
+			return text;
+		return sb.append(text, copied, text.length()).toString();
+	}
+
+	private static Rule match(String text, int i) {
+		char c = text.charAt(i);
+		if (c >= RULES_BY_CHAR.length || RULES_BY_CHAR[c] == null)
+			return null;
+		for (Rule rule : RULES_BY_CHAR[c]) {
+			int end = i + rule.pattern.length();
+			if (text.startsWith(rule.pattern, i) && (!rule.boundary || end == text.length() || !isWordChar(text.codePointAt(end))))
+				return rule;
+		}
+		return null;
+	}
+
+	/**
+	 * Word characters as defined by \b in java.util.regex after a word character (all patterns end with one), 
+	 * where a combining mark continues the word
+	 */
+	private static boolean isWordChar(int c) {
+		return Character.isLetterOrDigit(c) || c == '_' || Character.getType(c) == Character.NON_SPACING_MARK;
+	}
+
+}
@@ -0,0 +1,68 @@
+package se.kth.speech.coin.tangrams.data;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A corpus-wide dictionary which maps every token to a unique integer id.
+ * Interning is thread-safe, since sessions may be loaded in parallel.
+ */
+public class TokenDictionary {
+
+	private static final Map<String,Integer> ids = new ConcurrentHashMap<>();
+
+	private static volatile String[] words = new String[1024];
+
+	private static int size = 0;
+
+	/**
+	 * Returns the id of a token, adding it to the dictionary if it is new
+	 */
+	public static int id(String word) {
+		Integer id = ids.get(word);
+		if (id != null)
+			return id;
+		synchronized (TokenDictionary.class) {
+			id = ids.get(word);
+			if (id != null)
+				return id;
+			String[] w = words;
+			if (size == w.length)
+				w = Arrays.copyOf(w, w.length * 2);
+			w[size] = word;
+			// Publish the word before its id becomes visible
+			words = w;
+			ids.put(word, size);
+			return size++;
+		}
+	}
+
+	/**
+	 * Returns the id of a token, or -1 if it is not in the dictionary
+	 */
+	public static int lookup(String word) {
+		return ids.getOrDefault(word, -1);
+	}
+
+	public static String word(int id) {
+		return words[id];
+	}
+
+	public static int size() {
+		return ids.size();
+	}
+
+	/**
+	 * Interns an array of tokens, replacing them with the dictionary's instances, and returns their ids
+	 */
+	public static int[] intern(String[] tokens) {
+		int[] result = new int[tokens.length];
+		for (int i = 0; i < tokens.length; i++) {
+			result[i] = id(tokens[i]);
+			tokens[i] = word(result[i]);
+		}
+		return result;
+	}
+
+}
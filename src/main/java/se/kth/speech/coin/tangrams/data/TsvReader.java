@@ -0,0 +1,177 @@
+package se.kth.speech.coin.tangrams.data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Streams the rows of a tab-separated file through a fixed-size buffer, without holding the whole file in memory.
+ * Columns are located lazily, so rows can be tested and skipped without splitting them.
+ */
+public class TsvReader implements Closeable {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final FileChannel channel;
+	private byte[] buf = new byte[BUFFER_SIZE];
+	private int pos = 0;
+	private int limit = 0;
+	private boolean eof = false;
+
+	// buf[pos, scanned) is known to hold no newline, so that the scan continues from there after more of the file is read
+	private int scanned = 0;
+
+	// The current row is buf[start, end)
+	private int start;
+	private int end;
+
+	// Start offsets of the columns found so far in the current row
+	private int[] cols = new int[32];
+	private int colCount;
+
+	public TsvReader(File file) throws IOException {
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	}
+
+	/**
+	 * Advances to the next non-empty row. Leading and trailing whitespace is ignored, as with String.trim().
+	 */
+	public boolean next() throws IOException {
+		while (true) {
+			int nl = indexOfNewline();
+			while (nl < 0 && !eof) {
+				fill();
+				nl = indexOfNewline();
+			}
+			if (nl < 0 && pos == limit)
+				return false;
+			start = pos;
+			end = nl < 0 ? limit : nl;
+			pos = nl < 0 ? limit : nl + 1;
+			scanned = pos;
+			while (start < end && (buf[start] & 0xff) <= ' ')
+				start++;
+			while (end > start && (buf[end - 1] & 0xff) <= ' ')
+				end--;
+			if (start < end) {
+				cols[0] = start;
+				colCount = 1;
+				return true;
+			}
+		}
+	}
+
+	private int indexOfNewline() {
+		for (int i = scanned; i < limit; i++) {
+			if (buf[i] == '\n')
+				return i;
+		}
+		scanned = limit;
+		return -1;
+	}
+
+	private void fill() throws IOException {
+		if (pos > 0) {
+			System.arraycopy(buf, pos, buf, 0, limit - pos);
+			limit -= pos;
+			scanned -= pos;
+			pos = 0;
+		}
+		if (limit == buf.length)
+			buf = Arrays.copyOf(buf, buf.length * 2);
+		int n = channel.read(ByteBuffer.wrap(buf, limit, buf.length - limit));
+		if (n < 0)
+			eof = true;
+		else
+			limit += n;
+	}
+
+	/**
+	 * Finds the start of a column, scanning only as far as needed
+	 */
+	private int colStart(int col) {
+		while (colCount <= col) {
+			int i = cols[colCount - 1];
+			if (i > end)
+				throw new IndexOutOfBoundsException("Row has no column " + col + ": " + getRow());
+			while (i < end && buf[i] != '\t')
+				i++;
+			if (colCount == cols.length)
+				cols = Arrays.copyOf(cols, cols.length * 2);
+			cols[colCount++] = i + 1;
+		}
+		if (cols[col] > end)
+			throw new IndexOutOfBoundsException("Row has no column " + col + ": " + getRow());
+		return cols[col];
+	}
+
+	private int colEnd(int col) {
+		int i = colStart(col);
+		while (i < end && buf[i] != '\t')
+			i++;
+		return i;
+	}
+
+	/**
+	 * Checks if a column is equal to the given (ASCII) value, without decoding it
+	 */
+	public boolean columnEquals(int col, String value) {
+		int from = colStart(col);
+		int to = colEnd(col);
+		if (to - from != value.length())
+			return false;
+		for (int i = 0; i < value.length(); i++) {
+			if (buf[from + i] != value.charAt(i))
+				return false;
+		}
+		return true;
+	}
+
+	public String getString(int col) {
+		int from = colStart(col);
+		return new String(buf, from, colEnd(col) - from, StandardCharsets.UTF_8);
+	}
+
+	public int getInt(int col) {
+		int from = colStart(col);
+		int to = colEnd(col);
+		int i = from;
+		boolean negative = false;
+		if (i < to && (buf[i] == '-' || buf[i] == '+'))
+			negative = buf[i++] == '-';
+		if (i == to || to - i > 9)
+			return Integer.parseInt(getString(col));
+		int value = 0;
+		for (; i < to; i++) {
+			int digit = buf[i] - '0';
+			if (digit < 0 || digit > 9)
+				return Integer.parseInt(getString(col));
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	public float getFloat(int col) {
+		return Float.parseFloat(getString(col));
+	}
+
+	public boolean getBoolean(int col) {
+		int from = colStart(col);
+		if (colEnd(col) - from != 4)
+			return false;
+		return (buf[from] | 0x20) == 't' && (buf[from + 1] | 0x20) == 'r' && (buf[from + 2] | 0x20) == 'u' && (buf[from + 3] | 0x20) == 'e';
+	}
+
+	public String getRow() {
+		return new String(buf, start, end - start, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+}
@@ -1,8 +1,8 @@
 package se.kth.speech.coin.tangrams.data;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
-import java.util.stream.Collectors;
 
 
 public class Utterance {
@@ -10,8 +10,19 @@ public class Utterance {
 	public Integer round;
 	public String[] fullText;
 	public String[] refText;
+	// Token ids of fullText and refText (see TokenDictionary)
+	public int[] fullIds;
+	public int[] refIds;
 	public String speaker;
 	public boolean isGiver;
+	
+	private String normalizedText;
+	private int[] normalizedIds;
+	// Written last, so that a thread which sees the words also sees the ids
+	private volatile List<String> normalizedWords;
+
+	Utterance() {
+	}
 
 	public Utterance(String line) {
 		String[] cols = line.split("\t");
@@ -19,6 +30,23 @@ public class Utterance {
 		fullText = cols[4].toLowerCase().split(" ");
 		refText = cols[5].toLowerCase().split(" ");
 		speaker = cols[1];
+		intern();
+	}
+
+	/**
+	 * Reads the utterance from the current row of a referring tokens file
+	 */
+	public Utterance(TsvReader row) {
+		round = row.getInt(0);
+		fullText = row.getString(4).toLowerCase().split(" ");
+		refText = row.getString(5).toLowerCase().split(" ");
+		speaker = row.getString(1);
+		intern();
+	}
+
+	void intern() {
+		fullIds = TokenDictionary.intern(fullText);
+		refIds = TokenDictionary.intern(refText);
 	}
 
 	public void setRole(boolean AisGiver) {
@@ -45,27 +73,35 @@ public class Utterance {
 		return (isGiver ? "G" : "F") + ": " + getFullTextString();
 	}
 
+	/**
+	 * Returns the text with contractions expanded. The result is computed once and cached.
+	 */
 	public String getNormalizedTextString() {
-		String text = getFullTextString();
-		text = text.replaceAll("'s\\b", " is");
-		text = text.replaceAll("'ve\\b", " have");
-		text = text.replaceAll("'re\\b", " are");
-		text = text.replaceAll("'d\\b", " would");
-		text = text.replaceAll("'ll\\b", " will");
-		text = text.replaceAll("can't", "can not");
-		text = text.replaceAll("n't\\b", " not");
-		text = text.replaceAll("i'm", "i am");
-		//text = text.replaceAll("mm-hmm", "okay");
-		//text = text.replaceAll("mm-kay", "okay");
-		text = text.replaceAll("'kay", "okay");
-		//text = text.replaceAll("cucurucu", "cock");
-		return text;
+		if (normalizedText == null)
+			normalizedText = TextNormalizer.normalize(getFullTextString());
+		return normalizedText;
 	}
 
+	/**
+	 * Returns the normalized words, without partial words (starting or ending with "-"). The list is cached and cannot be modified.
+	 */
 	public List<String> getNormalizedWords() {
-		return Arrays.stream(getNormalizedTextString().split(" ")).filter(
-				item -> !item.endsWith("-") && !item.startsWith("-") 
-				).collect(Collectors.toList());
+		if (normalizedWords == null) {
+			String[] words = Arrays.stream(getNormalizedTextString().split(" ")).filter(
+					item -> !item.endsWith("-") && !item.startsWith("-") 
+					).toArray(String[]::new);
+			normalizedIds = TokenDictionary.intern(words);
+			normalizedWords = Collections.unmodifiableList(Arrays.asList(words));
+		}
+		return normalizedWords;
+	}
+
+	/**
+	 * Returns the token ids of the normalized words. The array is cached and must not be modified.
+	 */
+	public int[] getNormalizedIds() {
+		getNormalizedWords();
+		return normalizedIds;
 	}
 	
 }
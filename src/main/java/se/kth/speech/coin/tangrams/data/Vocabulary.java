@@ -6,82 +6,352 @@ import java.io.PrintWriter;
 import java.nio.file.Files;
 import java.util.*;
 
+/**
+ * Word counts, keyed by token id (see TokenDictionary).
+ * The counts are kept unboxed in an open-addressing hash table with linear probing.
+ * An overlay (see overlay()) only holds the counts which differ from its background, and cannot remove words.
+ */
 public class Vocabulary {
 
-	public Map<String,Integer> dict = new HashMap<>();
+	private static final int EMPTY = -1;
+
+	private int[] keys;
+	private int[] counts;
+	// Number of words in the table
+	private int size = 0;
+	// Number of bits of the table index, the capacity is 2^bits
+	private int bits;
+
+	// For an overlay: the vocabulary it adds to, which must not change while the overlay is used. 
+	// The table then only holds the words whose counts have changed, of which inherited are also in the background.
+	private Vocabulary background;
+	private int inherited = 0;
+
+	// The words sorted by frequency, cleared whenever the vocabulary changes
+	private List<String> sortedByFreq;
 
 	public Vocabulary() {
+		this(4);
+	}
+
+	private Vocabulary(int bits) {
+		this.bits = bits;
+		keys = new int[1 << bits];
+		counts = new int[1 << bits];
+		Arrays.fill(keys, EMPTY);
+	}
+
+	public Vocabulary(Vocabulary toCopy) {
+		this.bits = toCopy.bits;
+		this.keys = toCopy.keys.clone();
+		this.counts = toCopy.counts.clone();
+		this.size = toCopy.size;
+		this.sortedByFreq = toCopy.sortedByFreq;
+		this.background = toCopy.background;
+		this.inherited = toCopy.inherited;
+	}
+
+	/**
+	 * Returns an overlay of this vocabulary: it starts with the same counts, and holds only the counts which change, 
+	 * so that it is cheap to create for a large vocabulary. This vocabulary must not change while the overlay is used.
+	 */
+	public Vocabulary overlay() {
+		Vocabulary overlay = new Vocabulary();
+		overlay.background = this;
+		return overlay;
 	}
-	
+
+	/**
+	 * Returns a copy which holds all its counts itself, so that it no longer depends on the backgrounds of an overlay
+	 */
+	public Vocabulary flatten() {
+		if (background == null)
+			return new Vocabulary(this);
+		Vocabulary flat = new Vocabulary();
+		for (int word : getWordIds()) {
+			flat.setCount(word, getCount(word, 0));
+		}
+		return flat;
+	}
+
 	public Vocabulary(File file) throws Exception {
+		this();
 		for (String line : Files.readAllLines(file.toPath())) {
 			line = line.trim();
 			if (line.length() > 0) {
 				String[] cols = line.split("\t");
-				dict.put(cols[0], Integer.parseInt(cols[1]));
+				int i = insert(TokenDictionary.id(cols[0]));
+				counts[i] = Integer.parseInt(cols[1]);
+			}
+		}
+	}
+
+	private int slot(int word) {
+		// Fibonacci hashing, since token ids are sequential
+		return (word * 0x9E3779B9) >>> (32 - bits);
+	}
+
+	/**
+	 * Returns the slot of a word, or -1 if it is not in the table
+	 */
+	private int find(int word) {
+		int mask = keys.length - 1;
+		for (int i = slot(word); ; i = (i + 1) & mask) {
+			if (keys[i] == word)
+				return i;
+			if (keys[i] == EMPTY)
+				return -1;
+		}
+	}
+
+	/**
+	 * Returns the slot of a word, adding it if it is not in the table, with its count in the background or zero
+	 */
+	private int insert(int word) {
+		sortedByFreq = null;
+		int mask = keys.length - 1;
+		int i = slot(word);
+		for (; keys[i] != EMPTY; i = (i + 1) & mask) {
+			if (keys[i] == word)
+				return i;
+		}
+		if ((size + 1) * 2 > keys.length) {
+			grow();
+			return insert(word);
+		}
+		keys[i] = word;
+		int count = background != null ? background.getCount(word, -1) : -1;
+		counts[i] = Math.max(count, 0);
+		if (count >= 0)
+			inherited++;
+		size++;
+		return i;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		int[] oldCounts = counts;
+		bits++;
+		keys = new int[1 << bits];
+		counts = new int[1 << bits];
+		Arrays.fill(keys, EMPTY);
+		int mask = keys.length - 1;
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] != EMPTY) {
+				int i = slot(oldKeys[j]);
+				while (keys[i] != EMPTY)
+					i = (i + 1) & mask;
+				keys[i] = oldKeys[j];
+				counts[i] = oldCounts[j];
+			}
+		}
+	}
+
+	/**
+	 * Removes the entry in a slot, shifting later entries of the same probe sequence back into the gap
+	 */
+	private void removeAt(int i) {
+		sortedByFreq = null;
+		int mask = keys.length - 1;
+		int gap = i;
+		for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+			int home = slot(keys[j]);
+			// Move the entry if the gap lies between its home slot and its current slot (cyclically)
+			if (((j - home) & mask) >= ((j - gap) & mask)) {
+				keys[gap] = keys[j];
+				counts[gap] = counts[j];
+				gap = j;
 			}
 		}
+		keys[gap] = EMPTY;
+		size--;
 	}
-	
+
 	public void add(String word) {
-		if (!dict.containsKey(word))
-			dict.put(word, 1);
-		else
-			dict.put(word, dict.get(word) + 1);
+		add(TokenDictionary.id(word));
+	}
+
+	public void add(int word) {
+		// Insert first, since it may replace the arrays
+		int i = insert(word);
+		counts[i]++;
+	}
+
+	/**
+	 * Sets the count of a word, adding it if it is not in the vocabulary
+	 */
+	public void setCount(int word, int count) {
+		int i = insert(word);
+		counts[i] = count;
 	}
-	
+
+	private void checkRemovable() {
+		if (background != null)
+			throw new UnsupportedOperationException("Words cannot be removed from an overlay");
+	}
+
+	public void remove(String word) {
+		checkRemovable();
+		int id = TokenDictionary.lookup(word);
+		int i = id < 0 ? -1 : find(id);
+		if (i >= 0)
+			removeAt(i);
+	}
+
 	@Override
 	public String toString() {
 		StringBuilder sb = new StringBuilder();
 		for (String word : getWordsSortedByFreq()) {
-			sb.append(word + " " + dict.get(word) + "\n");
+			sb.append(word + " " + getCount(word) + "\n");
 		}
 		return sb.toString();
 	}
-	
+
+	/**
+	 * Removes, in place, the words with a count below n and partial words (ending with "-")
+	 */
 	public void prune(int n) {
-		for (String word : getWords()) {
-			if (dict.get(word) < n || word.endsWith("-")) {
-				dict.remove(word);
+		checkRemovable();
+		for (int i = 0; i < keys.length; ) {
+			// After a removal, the slot holds a shifted entry which has to be checked too
+			if (keys[i] != EMPTY && isPruned(keys[i], counts[i], n))
+				removeAt(i);
+			else
+				i++;
+		}
+	}
+
+	private static boolean isPruned(int word, int count, int n) {
+		return count < n || TokenDictionary.word(word).endsWith("-");
+	}
+
+	/**
+	 * Adds one to the count of each of the words
+	 */
+	public void addAll(int[] words) {
+		for (int word : words) {
+			add(word);
+		}
+	}
+
+	/**
+	 * Subtracts one from the count of each of the words, and removes the words whose count reaches zero
+	 */
+	public void removeAll(int[] words) {
+		checkRemovable();
+		for (int word : words) {
+			int i = find(word);
+			if (i < 0)
+				continue;
+			if (--counts[i] <= 0) {
+				removeAt(i);
+			} else {
+				sortedByFreq = null;
+			}
+		}
+	}
+
+	/**
+	 * Applies a delta to this (pruned) vocabulary. The words are those whose counts have changed in the unpruned counts,
+	 * which this vocabulary was pruned from with the threshold n.
+	 * Returns the ids of the words which are new, or whose count has changed and was at most the limit.
+	 */
+	public int[] update(Vocabulary counts, int[] words, int n, int limit) {
+		int[] updated = new int[words.length];
+		int u = 0;
+		for (int word : words) {
+			int count = counts.getCount(word, 0);
+			if (isPruned(word, count, n))
+				continue;
+			int oldCount = getCount(word, -1);
+			if (oldCount < 0) {
+				setCount(word, count);
+				updated[u++] = word;
+			} else if (oldCount != count) {
+				setCount(word, count);
+				if (oldCount <= limit)
+					updated[u++] = word;
 			}
 		}
+		return Arrays.copyOf(updated, u);
 	}
-	
+
 	public int size() {
-		return dict.size();
+		return background != null ? size + background.size() - inherited : size;
 	}
 
+	/**
+	 * Returns the words sorted by descending frequency (ties alphabetically).
+	 * The list is cached until the vocabulary changes, and cannot be modified.
+	 */
 	public List<String> getWordsSortedByFreq() {
-		List<String> words = getWords();
-		words.sort(new Comparator<String>() {
-			@Override
-			public int compare(String o1, String o2) {
-				return dict.get(o2).compareTo(dict.get(o1));
+		if (sortedByFreq == null) {
+			int[] ids = getWordIds();
+			int size = ids.length;
+			int[] freqs = new int[size];
+			String[] words = new String[size];
+			Integer[] order = new Integer[size];
+			for (int e = 0; e < size; e++) {
+				freqs[e] = getCount(ids[e], 0);
+				words[e] = TokenDictionary.word(ids[e]);
+				order[e] = e;
 			}
-		});
-		return words;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer o1, Integer o2) {
+					int cmp = Integer.compare(freqs[o2], freqs[o1]);
+					// Break ties alphabetically, so that the order does not depend on the token ids
+					return cmp != 0 ? cmp : words[o1].compareTo(words[o2]);
+				}
+			});
+			String[] sorted = new String[size];
+			for (int j = 0; j < size; j++) {
+				sorted[j] = words[order[j]];
+			}
+			sortedByFreq = Collections.unmodifiableList(Arrays.asList(sorted));
+		}
+		return sortedByFreq;
 	}
-	
+
 	public List<String> getWords() {
-		return new ArrayList<>(dict.keySet());
+		List<String> words = new ArrayList<>(size());
+		for (int id : getWordIds()) {
+			words.add(TokenDictionary.word(id));
+		}
+		return words;
 	}
 
-	public List<String> getUpdatedWordsSince(Vocabulary oldVocab, int threshold) {
-		List<String> newWords = new ArrayList<>();
-		for (String word : getWords()) {
-			//System.out.println(word + " " + oldVocab.dict.get(word) + " " + dict.get(word));
-			if (!oldVocab.dict.containsKey(word) || (oldVocab.dict.get(word) <= threshold && !oldVocab.dict.get(word).equals(dict.get(word))))
-				newWords.add(word);
-		} 
-		return newWords;
+	/**
+	 * Returns the ids of the words. For an overlay, the words it holds come first, followed by the other words of the background.
+	 */
+	public int[] getWordIds() {
+		int[] ids = new int[size()];
+		int e = 0;
+		for (int key : keys) {
+			if (key != EMPTY)
+				ids[e++] = key;
+		}
+		if (background != null) {
+			for (int id : background.getWordIds()) {
+				if (find(id) < 0)
+					ids[e++] = id;
+			}
+		}
+		return ids;
 	}
 
 	public Integer getCount(String word) {
-		return dict.get(word);
+		int id = TokenDictionary.lookup(word);
+		return id >= 0 && has(id) ? getCount(id, 0) : null;
 	}
-	
+
 	public boolean has(String word) {
-		return dict.containsKey(word);
+		int id = TokenDictionary.lookup(word);
+		return id >= 0 && has(id);
+	}
+
+	public boolean has(int word) {
+		return find(word) >= 0 || background != null && background.has(word);
 	}
 
 	public int getCount(String word, int def) {
@@ -92,17 +362,24 @@ public class Vocabulary {
 			return count;
 	}
 
+	public int getCount(int word, int def) {
+		int i = find(word);
+		if (i < 0)
+			return background != null ? background.getCount(word, def) : def;
+		return counts[i];
+	}
+
 	public int getSize() {
-		return dict.size();
+		return size();
 	}
 
 	public void save(File file) throws FileNotFoundException {
 		PrintWriter pw = new PrintWriter(file);
 		for (String word : getWordsSortedByFreq()) {
-			pw.println(word + "\t" + dict.get(word));
+			pw.println(word + "\t" + getCount(word));
 		}
 		pw.close();
 	}
-	
-	
+
+
 }
@@ -22,7 +22,7 @@ public class AnalyzeCategories {
 	
 	public AnalyzeCategories(LogisticModel model) throws Exception {
 		this.model = model;
-		for (String word : model.vocab.dict.keySet()) {
+		for (String word : model.vocab.getWords()) {
 			Referent ref = new Referent();
 			StandardDeviation stdev = new StandardDeviation();
 			ref.red = 1;
@@ -13,11 +13,11 @@ public class AnalyzeCoefficients {
 		model.train(new SessionSet(new File("C:/data/tangram/training.txt")));
 		//PrintWriter pw = new PrintWriter("word_analysis.tsv");
 		//pw.println("word\tcount\tpower\tweight");
-		for (String word : model.vocab.dict.keySet()) {
+		for (int word : model.vocab.getWordIds()) {
 			double[][] coeff = model.wordModels.get(word).coefficients();
 			for (int i = 0; i < coeff.length; i++) {
 				if (Math.abs(coeff[i][0]) > 4)
-					System.out.println(word + " " + i + " " + coeff[i][0]);
+					System.out.println(TokenDictionary.word(word) + " " + i + " " + coeff[i][0]);
 			}
 		}
 	}
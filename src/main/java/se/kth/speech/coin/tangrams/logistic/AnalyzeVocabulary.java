@@ -14,10 +14,10 @@ public class AnalyzeVocabulary {
 		model.train(new SessionSet(new File("C:/data/tangram/training.txt")));
 		PrintWriter pw = new PrintWriter("word_analysis.tsv");
 		pw.println("word\tcount\tpower\tweight");
-		for (String word : model.vocab.dict.keySet()) {
+		for (String word : model.vocab.getWords()) {
 			if (model.vocab.getCount(word, 0) > 0) 
-				pw.println(word + "\t" + model.vocab.getCount(word, 0) + "\t" + model.power.get(word) + "\t" + 
-			(Math.log10(model.vocab.getCount(word, 0)) * model.power.get(word)));
+				pw.println(word + "\t" + model.vocab.getCount(word, 0) + "\t" + model.power(word) + "\t" + 
+			(Math.log10(model.vocab.getCount(word, 0)) * model.power(word)));
 		}
 	}
 
@@ -24,13 +24,13 @@ public class AnalyzeWord2Vec {
 		wordVectors = WordVectorSerializer.loadTxtVectors(new File("C:/Dropbox/dev/Chatbot-RNN/word2vec/glove.6B.50d.txt"));
 		model = new LogisticModel();
 		model.train(new SessionSet(new File("C:/data/tangram/training.txt")));
-		for (String word : new ArrayList<>(model.vocab.dict.keySet())) {
+		for (String word : model.vocab.getWords()) {
 			if (!wordVectors.hasWord(word))
-				model.vocab.dict.remove(word);
+				model.vocab.remove(word);
 		}
 		PrintWriter pw = new PrintWriter("word_analysis.tsv");
 		//pw.println("word\tcount\tpower\tweight");
-		for (String word : model.vocab.dict.keySet()) {
+		for (String word : model.vocab.getWords()) {
 			List<String> closest = getClosest(word);
 			pw.println(word + "\t" + weight(word) + "\t" + closest + "\t" + avgWeight(closest)); 
 		}
@@ -46,7 +46,7 @@ public class AnalyzeWord2Vec {
 
 	private List<String> getClosest(String word) {
 		List<String> list = new ArrayList<>();
-		list.addAll(model.vocab.dict.keySet());
+		list.addAll(model.vocab.getWords());
 		Collections.sort(list, new Comparator<String>() {
 			@Override
 			public int compare(String arg0, String arg1) {
@@ -62,7 +62,7 @@ public class AnalyzeWord2Vec {
 	}
 	
 	private double weight(String word) {
-		return Math.log10(model.vocab.getCount(word, 0)) * model.power.get(word);
+		return Math.log10(model.vocab.getCount(word, 0)) * model.power(word);
 	}
 
 }
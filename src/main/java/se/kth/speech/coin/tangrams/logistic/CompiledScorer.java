@@ -0,0 +1,170 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import java.util.Arrays;
+import java.util.List;
+
+import se.kth.speech.coin.tangrams.data.FeatureStore;
+import se.kth.speech.coin.tangrams.data.Referent;
+
+/**
+ * The word models of a LogisticModel compiled into a flat coefficient table, so that scoring is a dot product and a sigmoid on the primitive features.
+ * Each word has one contiguous row: the log-odds offset of each shape (the intercept with the shape coefficient folded in),
+ * the offset for an unknown shape (the intercept), and the coefficients of RidgeWordClassifier.FEATURES.
+ * The sums are computed in the same order as RidgeWordClassifier.score(FeatureStore, int), so native models give the same scores.
+ * Weka models are compiled through RidgeWordClassifier.probe, and give the same scores up to rounding.
+ * Scoring does not allocate. The referents of a round are scored and ranked together by RoundScorer.
+ */
+public class CompiledScorer {
+
+	private static final int NF = RidgeWordClassifier.FEATURES.length;
+
+	private final List<String> shapes;
+	private final int k;
+	private final int stride;
+
+	// The row of each word (token id), or -1 if the word has none
+	private int[] rowOf = new int[0];
+	private int rows = 0;
+
+	private double[] table = new double[0];
+	// The frequency and power weights of each row (see LogisticModel.rank)
+	private double[] freq = new double[0];
+	private double[] power = new double[0];
+
+	public CompiledScorer(List<String> shapes) {
+		this.shapes = shapes;
+		this.k = shapes.size();
+		this.stride = k + 1 + NF;
+	}
+
+	/**
+	 * Creates a copy, which can be changed without affecting the original (e.g. for an overlay of a model)
+	 */
+	public CompiledScorer(CompiledScorer toCopy) {
+		this.shapes = toCopy.shapes;
+		this.k = toCopy.k;
+		this.stride = toCopy.stride;
+		this.rowOf = toCopy.rowOf.clone();
+		this.rows = toCopy.rows;
+		this.table = Arrays.copyOf(toCopy.table, toCopy.rows * stride);
+		this.freq = Arrays.copyOf(toCopy.freq, toCopy.rows);
+		this.power = Arrays.copyOf(toCopy.power, toCopy.rows);
+	}
+
+	public List<String> getShapes() {
+		return shapes;
+	}
+
+	/**
+	 * Sets the row of a word. A null model gives the word a score of 0.5, as in LogisticModel.score.
+	 * The model must have the shapes of this scorer (see RidgeWordClassifier.probe).
+	 */
+	public void set(int word, RidgeWordClassifier model, double freq, double power) {
+		if (word >= rowOf.length) {
+			int old = rowOf.length;
+			rowOf = Arrays.copyOf(rowOf, Math.max(word + 1, old * 2));
+			Arrays.fill(rowOf, old, rowOf.length, -1);
+		}
+		int row = rowOf[word];
+		if (row < 0) {
+			if (rows == this.freq.length) {
+				int capacity = Math.max(16, rows * 2);
+				table = Arrays.copyOf(table, capacity * stride);
+				this.freq = Arrays.copyOf(this.freq, capacity);
+				this.power = Arrays.copyOf(this.power, capacity);
+			}
+			row = rowOf[word] = rows++;
+		}
+		int base = row * stride;
+		if (model == null) {
+			Arrays.fill(table, base, base + stride, 0);
+		} else {
+			double intercept = model.getIntercept();
+			double[] shapeCoef = model.getShapeCoef();
+			for (int s = 0; s < k; s++) {
+				table[base + s] = intercept + shapeCoef[s];
+			}
+			table[base + k] = intercept;
+			System.arraycopy(model.getFeatureCoef(), 0, table, base + k + 1, NF);
+		}
+		this.freq[row] = freq;
+		this.power[row] = power;
+	}
+
+	/**
+	 * Returns the row of a word, or -1 if it has none
+	 */
+	int row(int word) {
+		return word >= 0 && word < rowOf.length ? rowOf[word] : -1;
+	}
+
+	/**
+	 * Returns the coefficient table, with getStride() values per row. The array is replaced when rows are added.
+	 */
+	double[] getTable() {
+		return table;
+	}
+
+	int getStride() {
+		return stride;
+	}
+
+	/**
+	 * Returns the frequency weight of a row, or the weight of an unknown word for -1
+	 */
+	double getFreq(int row) {
+		return row >= 0 ? freq[row] : Math.log10(3);
+	}
+
+	/**
+	 * Returns the power weight of a row, or the weight of an unknown word for -1
+	 */
+	double getPower(int row) {
+		return row >= 0 ? power[row] : 0;
+	}
+
+	/**
+	 * Returns the score of a word for the referent in a row of a feature store, which must have the shapes of this scorer
+	 */
+	public double score(int word, FeatureStore features, int row) {
+		int r = row(word);
+		if (r < 0)
+			return 0.5;
+		int base = r * stride;
+		int shape = features.getShape(row);
+		double logit = table[base + (shape >= 0 ? shape : k)];
+		for (int f = 0; f < NF; f++) {
+			logit += table[base + k + 1 + f] * features.get(RidgeWordClassifier.FEATURES[f], row);
+		}
+		return sigmoid(logit);
+	}
+
+	/**
+	 * Returns the score of a word for a referent
+	 */
+	public double score(int word, Referent ref) {
+		return score(word, ref, shapes.indexOf(ref.shape));
+	}
+
+	private double score(int word, Referent ref, int shape) {
+		int r = row(word);
+		if (r < 0)
+			return 0.5;
+		int base = r * stride + k + 1;
+		double logit = table[r * stride + (shape >= 0 ? shape : k)];
+		logit += table[base] * ref.size;
+		logit += table[base + 1] * ref.red;
+		logit += table[base + 2] * ref.green;
+		logit += table[base + 3] * ref.blue;
+		logit += table[base + 4] * ref.posx;
+		logit += table[base + 5] * ref.posy;
+		logit += table[base + 6] * ref.midx;
+		logit += table[base + 7] * ref.midy;
+		return sigmoid(logit);
+	}
+
+	private static double sigmoid(double logit) {
+		return 1 / (1 + Math.exp(-logit));
+	}
+
+}
@@ -0,0 +1,371 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import java.util.Arrays;
+
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+import org.nd4j.linalg.ops.transforms.Transforms;
+
+import se.kth.speech.coin.tangrams.data.FeatureStore;
+
+/**
+ * Trains the models of many words together, as one batched ridge logistic regression problem in ND4J.
+ * The referents of the training set form one shared matrix X (rows x columns: an intercept, the one-hot shapes and the numeric features,
+ * standardized over all rows). A batch of words has a coefficient matrix B (words x columns) and a weight matrix W (words x rows),
+ * where a zero weight masks out the rows which are not instances of the word. All words in a batch take damped Newton steps together:
+ * the gradients are (W * (sigmoid(B X') - y)) X, and the Hessians X' diag(W * p * (1 - p)) X are computed as (W * p * (1 - p)) times
+ * the pairwise products of the columns. Only the small per-word linear systems are solved outside ND4J.
+ * X is processed in blocks of rows, so that W and the products of the columns are only materialized for one block at a time,
+ * and blocks without instances of any word of the batch are skipped.
+ * The columns are standardized over all rows, but as in RidgeWordClassifier (and Weka), the ridge penalty applies to the coefficients
+ * of the columns standardized over the word's own instances: each coefficient is penalized by the word's variance of the column.
+ */
+public class JointLogisticTrainer {
+
+	private static final int MAX_ITERATIONS = 25;
+	// ND4J computes in single precision
+	private static final double TOLERANCE = 1e-5;
+
+	// The number of rows of a block of X
+	private static final int BLOCK_ROWS = 4096;
+
+	private final FeatureStore features;
+	private final int n;
+	private final int k;
+	// Number of columns, including the intercept
+	private final int p;
+	private final double[] mean;
+	private final double[] sd;
+
+	// The standardized rows (row-major) and the labels of each block of X
+	private final float[][] blocks;
+	private final float[][] labels;
+
+	/**
+	 * Returns true if the standardized matrix X of a feature store fits in (half of) the heap, so that the trainer can be used
+	 */
+	public static boolean fits(FeatureStore features) {
+		long p = 1 + features.getShapes().size() + RidgeWordClassifier.FEATURES.length;
+		return (long) features.size() * p * Float.BYTES < Runtime.getRuntime().maxMemory() / 2;
+	}
+
+	/**
+	 * Builds the standardized blocks of X for the rows of a feature store
+	 */
+	public JointLogisticTrainer(FeatureStore features) {
+		if (!fits(features))
+			throw new IllegalArgumentException("Too many rows for joint training: " + features.size());
+		this.features = features;
+		this.n = features.size();
+		this.k = features.getShapes().size();
+		this.p = 1 + k + RidgeWordClassifier.FEATURES.length;
+
+		// The mean and standard deviation of each column, read from the feature store
+		mean = new double[p];
+		sd = new double[p];
+		double[] value = new double[p];
+		for (int pass = 0; pass < 2; pass++) {
+			for (int row = 0; row < n; row++) {
+				load(row, value);
+				for (int j = 1; j < p; j++) {
+					if (pass == 0)
+						mean[j] += value[j];
+					else
+						sd[j] += (value[j] - mean[j]) * (value[j] - mean[j]);
+				}
+			}
+			for (int j = 1; j < p; j++) {
+				if (pass == 0) {
+					mean[j] /= n;
+				} else {
+					sd[j] = n > 1 ? Math.sqrt(sd[j] / (n - 1)) : 0;
+					if (sd[j] < 1e-10)
+						sd[j] = 0;
+				}
+			}
+		}
+
+		int count = (n + BLOCK_ROWS - 1) / BLOCK_ROWS;
+		blocks = new float[count][];
+		labels = new float[count][];
+		for (int q = 0; q < count; q++) {
+			int from = q * BLOCK_ROWS;
+			int rows = Math.min(n, from + BLOCK_ROWS) - from;
+			blocks[q] = new float[rows * p];
+			labels[q] = new float[rows];
+			for (int r = 0; r < rows; r++) {
+				load(from + r, value);
+				blocks[q][r * p] = 1;
+				for (int j = 1; j < p; j++) {
+					blocks[q][r * p + j] = sd[j] > 0 ? (float) ((value[j] - mean[j]) / sd[j]) : 0;
+				}
+				labels[q][r] = features.isTarget(from + r) ? 1 : 0;
+			}
+		}
+	}
+
+	/**
+	 * Loads the unstandardized columns of a row
+	 */
+	private void load(int row, double[] value) {
+		Arrays.fill(value, 0);
+		value[0] = 1;
+		int shape = features.getShape(row);
+		if (shape >= 0)
+			value[1 + shape] = 1;
+		for (int f = 0; f < RidgeWordClassifier.FEATURES.length; f++) {
+			value[1 + k + f] = features.get(RidgeWordClassifier.FEATURES[f], row);
+		}
+	}
+
+	private INDArray x(int q) {
+		return Nd4j.create(blocks[q], new int[] {labels[q].length, p});
+	}
+
+	private INDArray y(int q) {
+		return Nd4j.create(labels[q], new int[] {1, labels[q].length});
+	}
+
+	/**
+	 * Returns the products of each pair of columns (j <= l) of the rows of a block
+	 */
+	private INDArray pairs(int q) {
+		int rows = labels[q].length;
+		int pairs = p * (p + 1) / 2;
+		float[] x = blocks[q];
+		float[] data = new float[rows * pairs];
+		int c = 0;
+		for (int r = 0; r < rows; r++) {
+			for (int j = 0; j < p; j++) {
+				for (int l = j; l < p; l++) {
+					data[c++] = x[r * p + j] * x[r * p + l];
+				}
+			}
+		}
+		return Nd4j.create(data, new int[] {rows, pairs});
+	}
+
+	/**
+	 * The instances of a batch of words, sorted by row, with the first instance of each word in each block
+	 */
+	private class Batch {
+
+		private final int b;
+		private final int[][] rows;
+		private final float[][] weights;
+		private final int[][] starts;
+		// The blocks which hold instances of some word of the batch
+		private final int[] active;
+
+		private Batch(WordInstances[] instances) {
+			b = instances.length;
+			rows = new int[b][];
+			weights = new float[b][];
+			starts = new int[b][blocks.length + 1];
+			boolean[] used = new boolean[blocks.length];
+			for (int i = 0; i < b; i++) {
+				// Sorts the instances by row, adding up the weights of repeated rows
+				int[] order = Arrays.copyOf(instances[i].rows, instances[i].size);
+				Arrays.sort(order);
+				int m = 0;
+				for (int j = 0; j < order.length; j++) {
+					if (m == 0 || order[m - 1] != order[j])
+						order[m++] = order[j];
+				}
+				rows[i] = Arrays.copyOf(order, m);
+				float[] total = new float[m];
+				for (int j = 0; j < instances[i].size; j++) {
+					total[Arrays.binarySearch(rows[i], instances[i].rows[j])] += (float) instances[i].weights[j];
+				}
+				weights[i] = total;
+				int j = 0;
+				for (int q = 0; q < blocks.length; q++) {
+					starts[i][q] = j;
+					while (j < m && rows[i][j] < (q + 1) * BLOCK_ROWS)
+						j++;
+					if (j > starts[i][q])
+						used[q] = true;
+				}
+				starts[i][blocks.length] = m;
+			}
+			int a = 0;
+			int[] active = new int[blocks.length];
+			for (int q = 0; q < blocks.length; q++) {
+				if (used[q])
+					active[a++] = q;
+			}
+			this.active = Arrays.copyOf(active, a);
+		}
+
+		/**
+		 * Returns the weights of the words for the rows of a block (words x rows)
+		 */
+		private INDArray w(int q) {
+			int size = labels[q].length;
+			float[] data = new float[b * size];
+			for (int i = 0; i < b; i++) {
+				for (int j = starts[i][q]; j < starts[i][q + 1]; j++) {
+					data[i * size + rows[i][j] - q * BLOCK_ROWS] = weights[i][j];
+				}
+			}
+			return Nd4j.create(data, new int[] {b, size});
+		}
+
+	}
+
+	/**
+	 * Trains the models of a batch of words, given their instances (rows of the feature store and weights)
+	 */
+	public RidgeWordClassifier[] train(WordInstances[] instances, double ridge) {
+		int b = instances.length;
+		Batch batch = new Batch(instances);
+		double[][] scale = penaltyScale(batch);
+
+		double[][] beta = new double[b][p];
+		double[][] next = new double[b][p];
+		double[][] step = new double[b][p];
+		double[] grad = new double[p];
+		double[] hess = new double[p * p];
+		double[] loss = loss(beta, batch, ridge, scale);
+		for (int it = 0; it < MAX_ITERATIONS; it++) {
+			INDArray coef = Nd4j.create(beta);
+			INDArray g = Nd4j.zeros(b, p);
+			INDArray h = Nd4j.zeros(b, p * (p + 1) / 2);
+			for (int q : batch.active) {
+				INDArray x = x(q);
+				INDArray w = batch.w(q);
+				INDArray prob = Transforms.sigmoid(coef.mmul(x.transpose()), false);
+				g.addi(prob.subRowVector(y(q)).muli(w).mmul(x));
+				h.addi(prob.rsub(1).muli(prob).muli(w).mmul(pairs(q)));
+			}
+			for (int i = 0; i < b; i++) {
+				int c = 0;
+				for (int j = 0; j < p; j++) {
+					grad[j] = g.getDouble(i, j);
+					for (int l = j; l < p; l++) {
+						hess[j * p + l] = hess[l * p + j] = h.getDouble(i, c++);
+					}
+				}
+				for (int j = 1; j < p; j++) {
+					if (sd[j] > 0) {
+						grad[j] += 2 * ridge * scale[i][j] * beta[i][j];
+						hess[j * p + j] += 2 * ridge * scale[i][j];
+					} else {
+						// Unused column, keep its coefficient at zero
+						grad[j] = 0;
+						for (int l = 0; l < p; l++) {
+							hess[j * p + l] = 0;
+							hess[l * p + j] = 0;
+						}
+						hess[j * p + j] = 1;
+					}
+				}
+				// The standardized one-hot shapes are linearly dependent, so with a small ridge the Hessians are close to singular,
+				// which single precision cannot resolve. Damping the diagonal only slows down the steps along that direction.
+				for (int j = 0; j < p; j++) {
+					hess[j * p + j] += 1e-5 * hess[j * p + j] + 1e-6;
+				}
+				RidgeWordClassifier.solve(hess, grad, step[i], p);
+			}
+
+			// Halve the steps of the words whose loss would increase, and give up on the step if it gets too small
+			double[] t = new double[b];
+			Arrays.fill(t, 1);
+			boolean[] accepted = new boolean[b];
+			double[] nextLoss = null;
+			for (int halvings = 0; halvings < 30; halvings++) {
+				for (int i = 0; i < b; i++) {
+					for (int j = 0; j < p; j++) {
+						next[i][j] = beta[i][j] - t[i] * step[i][j];
+					}
+				}
+				nextLoss = loss(next, batch, ridge, scale);
+				boolean done = true;
+				for (int i = 0; i < b; i++) {
+					if (!accepted[i] && nextLoss[i] <= loss[i] + 1e-6 * Math.abs(loss[i]))
+						accepted[i] = true;
+					if (!accepted[i] && t[i] < 1e-6) {
+						next[i] = beta[i].clone();
+						nextLoss[i] = loss[i];
+						accepted[i] = true;
+					}
+					if (!accepted[i]) {
+						t[i] /= 2;
+						done = false;
+					}
+				}
+				if (done)
+					break;
+			}
+			double change = 0;
+			for (int i = 0; i < b; i++) {
+				for (int j = 0; j < p; j++) {
+					change = Math.max(change, Math.abs(next[i][j] - beta[i][j]));
+					beta[i][j] = next[i][j];
+				}
+			}
+			loss = nextLoss;
+			if (change < TOLERANCE)
+				break;
+		}
+
+		RidgeWordClassifier[] classifiers = new RidgeWordClassifier[b];
+		for (int i = 0; i < b; i++) {
+			double[] coef = new double[p - 1];
+			double intercept = beta[i][0];
+			for (int j = 1; j < p; j++) {
+				coef[j - 1] = sd[j] > 0 ? beta[i][j] / sd[j] : 0;
+				intercept -= coef[j - 1] * mean[j];
+			}
+			classifiers[i] = RidgeWordClassifier.create(features.getShapes(), intercept, Arrays.copyOf(coef, k), Arrays.copyOfRange(coef, k, p - 1));
+		}
+		return classifiers;
+	}
+
+	/**
+	 * Returns the weighted variance of each (standardized) column over the instances of each word
+	 */
+	private double[][] penaltyScale(Batch batch) {
+		INDArray total = Nd4j.zeros(batch.b, 1);
+		INDArray sum = Nd4j.zeros(batch.b, p);
+		INDArray sumSq = Nd4j.zeros(batch.b, p);
+		for (int q : batch.active) {
+			INDArray x = x(q);
+			INDArray w = batch.w(q);
+			total.addi(w.sum(1));
+			sum.addi(w.mmul(x));
+			sumSq.addi(w.mmul(x.mul(x)));
+		}
+		double[][] scale = new double[batch.b][p];
+		for (int i = 0; i < scale.length; i++) {
+			double totalWeight = total.getDouble(i);
+			for (int j = 1; j < p; j++) {
+				double m = sum.getDouble(i, j) / totalWeight;
+				scale[i][j] = totalWeight > 1 ? Math.abs(sumSq.getDouble(i, j) - totalWeight * m * m) / (totalWeight - 1) : 0;
+			}
+		}
+		return scale;
+	}
+
+	/**
+	 * Returns the weighted negative log-likelihood plus the ridge penalty of each word
+	 */
+	private double[] loss(double[][] beta, Batch batch, double ridge, double[][] scale) {
+		INDArray coef = Nd4j.create(beta);
+		INDArray sums = Nd4j.zeros(batch.b, 1);
+		for (int q : batch.active) {
+			INDArray logits = coef.mmul(x(q).transpose());
+			// log(1 + exp(logit)) - y * logit
+			sums.addi(Transforms.softPlus(logits).subi(logits.mulRowVector(y(q))).muli(batch.w(q)).sum(1));
+		}
+		double[] loss = new double[beta.length];
+		for (int i = 0; i < beta.length; i++) {
+			loss[i] = sums.getDouble(i);
+			for (int j = 1; j < p; j++) {
+				loss[i] += ridge * scale[i][j] * beta[i][j] * beta[i][j];
+			}
+		}
+		return loss;
+	}
+
+}
@@ -1,23 +1,33 @@
 package se.kth.speech.coin.tangrams.logistic;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
-import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
 import org.apache.commons.math3.stat.descriptive.summary.Sum;
 
+import se.kth.speech.coin.tangrams.data.FeatureStore;
 import se.kth.speech.coin.tangrams.data.Parameters;
 import se.kth.speech.coin.tangrams.data.Referent;
 import se.kth.speech.coin.tangrams.data.Round;
 import se.kth.speech.coin.tangrams.data.RoundSet;
 import se.kth.speech.coin.tangrams.data.Session;
 import se.kth.speech.coin.tangrams.data.SessionSet;
+import se.kth.speech.coin.tangrams.data.TokenDictionary;
 import se.kth.speech.coin.tangrams.data.Vocabulary;
 import weka.classifiers.functions.Logistic;
 import weka.core.*;
 
 public class LogisticModel {
 
-	public Map<String,Logistic> wordModels = new HashMap<>();
+	// Word models, keyed by token id (concurrent, since words are trained in parallel)
+	public Map<Integer,WordClassifier> wordModels = new ConcurrentHashMap<>();
 	
 	private Attribute SHAPE;
 	private Attribute SIZE;
@@ -38,27 +48,131 @@ public class LogisticModel {
 
 	protected Vocabulary vocab;
 	
-	protected Map<String,Double> power = new HashMap<>();
+	// The unpruned word counts, which vocab is pruned from
+	private Vocabulary counts;
+	
+	protected Map<Integer,Double> power = new ConcurrentHashMap<>();
+	
+	// The training instances of the native word models which have been updated with new rounds, so that further updates only append instances
+	private Map<Integer,WordInstances> updatedInstances = new ConcurrentHashMap<>();
 
 	//protected Map<String,Double> predict = new HashMap<>();
 	
 	private LogisticModel storedModel;
 	
+	// For an overlay (see overlay()): the model it adapts, which the overlay never changes. 
+	// wordModels and power then only hold the retrained words, trainingSet only the appended rounds, and vocab and counts are overlays of the background's.
+	private LogisticModel background;
+	
+	// The word models compiled for scoring, created on first use and kept up to date when words are retrained
+	private CompiledScorer compiled;
+	
+	// The scores looked up so far (see Parameters.SCORE_CACHE_SIZE), created on first use and dropped at the start of each session
+	private ScoreCache scoreCache;
+	
+	// The buffers of the batched scoring of rounds, one per thread since folds are evaluated in parallel
+	private static final ThreadLocal<RoundScorer> ROUND_SCORER = ThreadLocal.withInitial(RoundScorer::new);
+	
+	// The pool that words are trained on when Parameters.TRAIN_THREADS > 1 (see getTrainingPool)
+	private static ForkJoinPool trainingPool;
+	
 	public Vocabulary getVocabulary() {
 		return vocab;
 	}
 		
 	/**
-	 * Trains the word models using all data from a SessionSet
+	 * Trains the word models using all data from a SessionSet.
+	 * If Parameters.USE_MODEL_CACHE is set and the sessions were loaded from files, the model is loaded from the cache (see ModelSnapshot) 
+	 * when it has been trained on the same files with the same settings, and saved to it otherwise.
+	 * Both native and Weka models are stored exactly, so a model loaded from the cache is the same as a retrained one.
 	 */
 	public void train(SessionSet set) throws Exception {
+		train(set, Parameters.USE_MODEL_CACHE);
+	}
+	
+	/**
+	 * Trains the word models using all data from a SessionSet, using the model cache only if useCache is set (see train(SessionSet))
+	 */
+	private void train(SessionSet set, boolean useCache) throws Exception {
 		
 		trainingSet = new RoundSet(set);
-		vocab = trainingSet.getVocabulary();
+		updatedInstances = new ConcurrentHashMap<>();
+		compiled = null;
+		scoreCache = null;
+		
+		File cache = null;
+		byte[] key = null;
+		if (useCache && set.getSource() != null) {
+			key = ModelSnapshot.key(set.getDigest());
+			cache = ModelSnapshot.getFile(set.getSource(), key);
+			ModelSnapshot snapshot = ModelSnapshot.read(cache, key);
+			if (snapshot != null) {
+				load(snapshot);
+				return;
+			}
+		}
 		
+		counts = trainingSet.getWordCounts();
+		vocab = new Vocabulary(counts);
+		vocab.prune(Parameters.DISCOUNT);
+		
+		createAttributes(trainingSet.getFeatures().getShapes());
+		
+		train(vocab.getWordIds(), false);
+		//train(trainingSet.getBigramVocabulary().getWordIds());
+		
+		ModelSnapshot snapshot;
+		if (cache != null && (snapshot = snapshot()) != null) {
+			try {
+				snapshot.write(cache, key);
+			} catch (IOException e) {
+				System.err.println("Could not write model snapshot " + cache + ": " + e);
+			}
+		}
+	}
+	
+	/**
+	 * Returns a snapshot of the trained model, or null if some word model cannot be stored exactly
+	 */
+	public ModelSnapshot snapshot() {
+		ModelSnapshot snapshot = new ModelSnapshot();
+		snapshot.shapes = trainingSet.getFeatures().getShapes();
+		snapshot.counts = counts;
+		for (Map.Entry<Integer,WordClassifier> entry : wordModels.entrySet()) {
+			WordClassifier model = entry.getValue();
+			if (model instanceof WekaWordClassifier)
+				snapshot.wekaModels.put(entry.getKey(), ((WekaWordClassifier) model).logistic);
+			else if (model instanceof RidgeWordClassifier && ((RidgeWordClassifier) model).getShapes() == snapshot.shapes)
+				snapshot.models.put(entry.getKey(), (RidgeWordClassifier) model);
+			else
+				return null;
+		}
+		snapshot.power.putAll(power);
+		return snapshot;
+	}
+	
+	/**
+	 * Restores the model from a snapshot, for the training set which it was trained on
+	 */
+	private void load(ModelSnapshot snapshot) {
+		// The feature store uses the shapes of the snapshot, so that the models can score its rows directly
+		trainingSet = new RoundSet(trainingSet.rounds, snapshot.shapes);
+		counts = snapshot.counts;
+		vocab = new Vocabulary(counts);
+		vocab.prune(Parameters.DISCOUNT);
+		createAttributes(snapshot.shapes);
+		wordModels.putAll(snapshot.models);
+		for (Map.Entry<Integer,Logistic> entry : snapshot.wekaModels.entrySet()) {
+			wordModels.put(entry.getKey(), new WekaWordClassifier(entry.getValue(), this));
+		}
+		power.putAll(snapshot.power);
+	}
+	
+	private void createAttributes(List<String> shapes) {
 		atts = new ArrayList<>();
 		
-		atts.add(SHAPE = new Attribute("shape", new ArrayList<String>(Referent.shapes)));
+		// The shape values are in the same order as the shape indices of the feature store
+		atts.add(SHAPE = new Attribute("shape", new ArrayList<String>(shapes)));
 		atts.add(SIZE = new Attribute("size"));
 		atts.add(RED = new Attribute("red"));
 		atts.add(GREEN = new Attribute("green"));
@@ -74,23 +188,161 @@ public class LogisticModel {
 		
 		atts.add(TARGET = new Attribute("target", Arrays.asList(new String[] {"true", "false"})));
 		
-		train(vocab.getWords());
-		//train(trainingSet.getBigramVocabulary().getWords());
+		// Assigns the attribute indices, which are otherwise only set when a Weka model is trained (a model loaded from the cache is not)
+		new Instances("Dataset", atts, 0);
+	}
+	
+	/**
+	 * Creates the model of a cross-validation fold from this model, which has been trained on all sessions.
+	 * A word which does not occur in the held-out session has the same training rounds in the fold, so its model is shared with this one.
+	 * The other words are retrained, and the counts of the held-out session are subtracted from the word counts.
+	 * The discriminative power is recomputed for all words, since it depends on all training referents.
+	 */
+	LogisticModel fold(SessionSet training, Session testing) throws Exception {
+		LogisticModel model = new LogisticModel();
+		model.trainingSet = new RoundSet(training);
+		model.counts = new Vocabulary(counts);
+		Vocabulary heldOut = new Vocabulary();
+		for (Round round : testing.rounds) {
+			model.counts.removeAll(round.getUniqueWordIds());
+			heldOut.addAll(round.getUniqueWordIds());
+		}
+		model.vocab = new Vocabulary(model.counts);
+		model.vocab.prune(Parameters.DISCOUNT);
+		model.createAttributes(model.trainingSet.getFeatures().getShapes());
+		
+		int[] words = model.vocab.getWordIds();
+		int[] retrain = new int[words.length];
+		int[] reuse = new int[words.length];
+		int r = 0, u = 0;
+		for (int word : words) {
+			if (heldOut.has(word)) {
+				retrain[r++] = word;
+			} else {
+				model.wordModels.put(word, wordModels.get(word));
+				reuse[u++] = word;
+			}
+		}
+		model.train(Arrays.copyOf(retrain, r), false);
+		model.computePower(Arrays.copyOf(reuse, u));
+		return model;
+	}
+	
+	/**
+	 * Returns an overlay of this model: a model which can be updated (see updateModel) without changing this model.
+	 * The overlay only holds the appended rounds, the retrained word models, and the changed word counts. 
+	 * The words are retrained on the rows of this model's feature store where they occur, followed by those of the appended rounds, 
+	 * so several overlays of the same model can be updated at the same time, each with memory proportional to its own rounds.
+	 */
+	public LogisticModel overlay() {
+		LogisticModel overlay = new LogisticModel();
+		overlay.overlayOn(this);
+		return overlay;
 	}
 	
+	private void overlayOn(LogisticModel background) {
+		this.background = background;
+		copyAttributes(background);
+		this.vocab = background.vocab.overlay();
+		this.counts = background.counts.overlay();
+		this.wordModels = new ConcurrentHashMap<>();
+		this.power = new ConcurrentHashMap<>();
+		this.trainingSet = new RoundSet(new ArrayList<>(), background.trainingSet.getFeatures().getShapes());
+		this.updatedInstances = new ConcurrentHashMap<>();
+		this.compiled = null;
+		this.scoreCache = null;
+	}
+	
+	/**
+	 * Stores the current model, which retrieveModel() returns to. The stored model is a flat snapshot (a model without a background), 
+	 * and this model continues as an overlay of it, so its updates only hold the rounds appended since.
+	 * If this model is itself an overlay, it is first collapsed into its backgrounds, so storing again never lengthens the chain of backgrounds.
+	 */
 	public void storeModel() {
 		storedModel = new LogisticModel();
-		storedModel.vocab = this.vocab;
-		storedModel.wordModels = this.wordModels;
-		storedModel.trainingSet = new RoundSet(this.trainingSet.rounds);
-		storedModel.power = new HashMap<>(power);
+		storedModel.copyAttributes(this);
+		if (background == null) {
+			storedModel.vocab = vocab;
+			storedModel.counts = counts;
+			storedModel.wordModels = wordModels;
+			storedModel.power = power;
+			storedModel.trainingSet = trainingSet;
+			storedModel.compiled = compiled;
+		} else {
+			storedModel.vocab = vocab.flatten();
+			storedModel.counts = counts.flatten();
+			collectModels(storedModel.wordModels, storedModel.power);
+			// The rounds are concatenated in the same order as the feature parts, so the rows of the collapsed feature store are the same
+			List<Round> rounds = new ArrayList<>();
+			for (RoundSet set : getTrainingSets()) {
+				rounds.addAll(set.rounds);
+			}
+			storedModel.trainingSet = new RoundSet(rounds, trainingSet.getFeatures().getShapes());
+		}
+		overlayOn(storedModel);
+	}
+	
+	/**
+	 * Adds the word models and powers of this model and its backgrounds, where those of this model take precedence
+	 */
+	private void collectModels(Map<Integer,WordClassifier> models, Map<Integer,Double> powers) {
+		if (background != null)
+			background.collectModels(models, powers);
+		models.putAll(wordModels);
+		powers.putAll(power);
 	}
 	
+	/**
+	 * Discards the updates since storeModel(), by starting a new overlay of the stored model
+	 */
 	public void retrieveModel() {
-		this.vocab = storedModel.vocab;
-		this.wordModels = storedModel.wordModels;
-		this.trainingSet = storedModel.trainingSet;
-		this.power = storedModel.power;
+		overlayOn(storedModel);
+	}
+	
+	private void copyAttributes(LogisticModel model) {
+		this.atts = model.atts;
+		this.SHAPE = model.SHAPE;
+		this.SIZE = model.SIZE;
+		this.RED = model.RED;
+		this.GREEN = model.GREEN;
+		this.BLUE = model.BLUE;
+		this.HUE = model.HUE;
+		this.POSX = model.POSX;
+		this.POSY = model.POSY;
+		this.MIDX = model.MIDX;
+		this.MIDY = model.MIDY;
+		this.MENTIONED = model.MENTIONED;
+		this.TARGET = model.TARGET;
+	}
+	
+	/**
+	 * Returns the model of a word, looking it up in the background of an overlay if it has not been retrained
+	 */
+	private WordClassifier getModel(int word) {
+		WordClassifier model = wordModels.get(word);
+		if (model == null && background != null)
+			return background.getModel(word);
+		return model;
+	}
+	
+	/**
+	 * Returns the training sets of all training rounds: those of the backgrounds of an overlay (the innermost first), followed by the appended ones
+	 */
+	private List<RoundSet> getTrainingSets() {
+		List<RoundSet> sets = background == null ? new ArrayList<>() : background.getTrainingSets();
+		sets.add(trainingSet);
+		return sets;
+	}
+	
+	/**
+	 * Returns the referent features of all training rounds: those of the backgrounds of an overlay, followed by the appended ones
+	 */
+	private List<FeatureStore> getFeatureParts() {
+		List<FeatureStore> parts = new ArrayList<>();
+		for (RoundSet set : getTrainingSets()) {
+			parts.add(set.getFeatures());
+		}
+		return parts;
 	}
 	
 	/**
@@ -98,18 +350,41 @@ public class LogisticModel {
 	 */
 	public void updateModel(Round round) throws Exception {
 		//System.out.println("UPDATING");
-		trainingSet.rounds.add(round);
-		round.weight = Parameters.UPDATE_WEIGHT; 
-		Vocabulary oldVocab = vocab;
-		vocab = trainingSet.getVocabulary();
 		// only update words with a maximum count of 200
-		train(vocab.getUpdatedWordsSince(oldVocab, 200));
+		addRounds(Collections.singletonList(round), Parameters.UPDATE_WEIGHT, 200);
+	}
+	
+	/**
+	 * Adds new training rounds (e.g. from sessions found by a SessionWatcher), and retrains all word models whose counts they change
+	 */
+	public void addTrainingRounds(List<Round> rounds) throws Exception {
+		addRounds(rounds, 1, Integer.MAX_VALUE);
+	}
+	
+	private void addRounds(List<Round> rounds, double weight, int limit) throws Exception {
+		// The training set's index picks up the new rounds on its next lookup
+		Vocabulary changed = new Vocabulary();
+		for (Round round : rounds) {
+			trainingSet.rounds.add(round);
+			round.weight = weight;
+			// Only the counts of the words in the new rounds change
+			int[] words = round.getUniqueWordIds();
+			counts.addAll(words);
+			changed.addAll(words);
+		}
+		train(vocab.update(counts, changed.getWordIds(), Parameters.DISCOUNT, limit), true);
+		// The frequency weights of all the changed words have changed, not only those which were retrained
+		if (compiled != null)
+			compile(changed.getWordIds());
 	}
 	
 	/**
-	 * Trains models for the specified words
+	 * Trains models for the specified words (token ids).
+	 * With Parameters.TRAIN_THREADS > 1, the words are trained on a work-stealing pool, starting with the most expensive ones, 
+	 * so that a few very frequent words do not end up training last on a single core.
+	 * If update is set, native models are warm-started from their current coefficients, and their instances are kept for the next update.
 	 */
-	private void train(List<String> words) throws Exception {
+	private void train(int[] words, boolean update) throws Exception {
 
 		//System.out.println("Training " + words);
 		
@@ -129,45 +404,148 @@ public class LogisticModel {
 		}
 		*/
 		
-		// Train a model for each word
-		for (String word : words) {
-			
-			//System.out.println(word);
-			
-			//long t = System.currentTimeMillis();
-			
-			Logistic logistic = buildClassifier(word, trainingSet);
-			
-			//System.out.println(word + " in " + (System.currentTimeMillis() - t));
-						
-			wordModels.put(word, logistic);
-			
-			//t = System.currentTimeMillis();
-			
-			if (Parameters.WEIGHT_BY_POWER) {
-				StandardDeviation stdev = new StandardDeviation();
-				//int i = 0;
-				for (Round round : trainingSet.rounds) {
-					for (Referent ref : round.referents) {
-						// We only compute the stdev for every 10th object, to speed up
-						//if (i++ % 10 == 0)
-						stdev.increment(score(word, ref));
-					}
-				}
-				//System.out.println(word + " " + stdev.getResult());
-				power.put(word, stdev.getResult());
+		// Brings the indices and the feature stores up to date before any threads use them
+		TrainingData data = new TrainingData(getTrainingSets());
+		int[][][] rounds = new int[words.length][][];
+		for (int i = 0; i < words.length; i++) {
+			rounds[i] = data.getRoundIndices(words[i]);
+		}
+		
+		if (Parameters.JOINT_TRAINING && !update && background == null && JointLogisticTrainer.fits(trainingSet.getFeatures())) {
+			trainJointly(words, data, rounds);
+		} else if (Parameters.TRAIN_THREADS <= 1) {
+			for (int i = 0; i < words.length; i++) {
+				train(words[i], data, rounds[i], update);
 			}
-			//System.out.println("computed weight in " + (System.currentTimeMillis() - t));
-			
+		} else {
+			trainInParallel(words, data, rounds, update);
 		}
 		
+		//long t = System.currentTimeMillis();
+		computePower(words);
+		//System.out.println("computed weight in " + (System.currentTimeMillis() - t));
+		
+		if (scoreCache != null)
+			scoreCache.invalidate(words);
 				
 	}
+	
+	private void trainInParallel(int[] words, TrainingData data, int[][][] rounds, boolean update) throws Exception {
+		// The cost of a word is estimated by the number of instances it is trained on 
+		long[] cost = new long[words.length];
+		Integer[] order = new Integer[words.length];
+		for (int i = 0; i < words.length; i++) {
+			cost[i] = data.getInstanceCount(rounds[i]);
+			order[i] = i;
+		}
+		Arrays.sort(order, (i, j) -> Long.compare(cost[j], cost[i]));
+		
+		ForkJoinPool pool = getTrainingPool();
+		List<ForkJoinTask<?>> tasks = new ArrayList<>(words.length);
+		try {
+			for (int i : order) {
+				tasks.add(pool.submit(() -> {
+					train(words[i], data, rounds[i], update);
+					return null;
+				}));
+			}
+			for (ForkJoinTask<?> task : tasks) {
+				task.get();
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			throw e;
+		} finally {
+			// The pool is shared, so the words that have not been trained when a word fails are cancelled rather than left to run
+			for (ForkJoinTask<?> task : tasks) {
+				task.cancel(true);
+			}
+		}
+				
+	}
+	
+	/**
+	 * Returns the pool that words (and the partitions of large models) are trained on, with Parameters.TRAIN_THREADS threads.
+	 * The pool is shared by all models and kept between calls, and only replaced when the setting changes.
+	 */
+	static synchronized ForkJoinPool getTrainingPool() {
+		if (trainingPool == null || trainingPool.getParallelism() != Parameters.TRAIN_THREADS) {
+			// Tasks already submitted to the old pool still complete
+			if (trainingPool != null)
+				trainingPool.shutdown();
+			trainingPool = new ForkJoinPool(Parameters.TRAIN_THREADS);
+		}
+		return trainingPool;
+	}
+	
+	/**
+	 * Trains the models of the words in batches of Parameters.JOINT_BATCH_SIZE with the JointLogisticTrainer
+	 */
+	private void trainJointly(int[] words, TrainingData data, int[][][] rounds) throws Exception {
+		JointLogisticTrainer trainer = new JointLogisticTrainer(trainingSet.getFeatures());
+		for (int from = 0; from < words.length; from += Parameters.JOINT_BATCH_SIZE) {
+			int to = Math.min(from + Parameters.JOINT_BATCH_SIZE, words.length);
+			WordInstances[] instances = new WordInstances[to - from];
+			for (int i = from; i < to; i++) {
+				instances[i - from] = data.getInstances(rounds[i]);
+			}
+			RidgeWordClassifier[] classifiers = trainer.train(instances, ridge());
+			for (int i = from; i < to; i++) {
+				wordModels.put(words[i], classifiers[i - from]);
+			}
+		}
+	}
+	
+	/**
+	 * Trains the model for one word, given the training data and the indices of the training rounds where it occurs in each training set
+	 */
+	private void train(int word, TrainingData data, int[][] rounds, boolean update) throws Exception {
+		
+		//System.out.println(word);
+		
+		//long t = System.currentTimeMillis();
+		
+		WordClassifier classifier = update && Parameters.NATIVE_LOGISTIC ? updateClassifier(word, data, rounds) : buildClassifier(data, rounds);
+		
+		//System.out.println(word + " in " + (System.currentTimeMillis() - t));
+						
+		wordModels.put(word, classifier);
+		
+	}
+	
+	/**
+	 * Computes the discriminative power of the words (if Parameters.WEIGHT_BY_POWER is set): the stdev of their scores over the training referents.
+	 * With Parameters.POWER_SAMPLE_ERROR > 0, only a random sample of the referents is scored (see PowerEstimator.sampleSize).
+	 */
+	private void computePower(int[] words) throws Exception {
+		if (!Parameters.WEIGHT_BY_POWER)
+			return;
+		FeatureStore[] parts = getFeatureParts().toArray(new FeatureStore[0]);
+		int size = 0;
+		for (FeatureStore part : parts) {
+			size += part.size();
+		}
+		int[] rows = PowerEstimator.sample(size, PowerEstimator.sampleSize(size, Parameters.POWER_SAMPLE_ERROR), 0);
+		WordClassifier[] classifiers = new WordClassifier[words.length];
+		for (int i = 0; i < words.length; i++) {
+			classifiers[i] = getModel(words[i]);
+		}
+		double[] result = PowerEstimator.estimate(classifiers, parts, rows, Parameters.TRAIN_THREADS <= 1 ? null : getTrainingPool());
+		for (int i = 0; i < words.length; i++) {
+			//System.out.println(words[i] + " " + result[i]);
+			power.put(words[i], result[i]);
+		}
+	}
+		
+	private WordClassifier buildClassifier(TrainingData data, int[][] rounds) throws Exception {
+		// The instances are only a view of the shared feature stores
+		WordInstances instances = data.getInstances(rounds);
+		
+		if (Parameters.NATIVE_LOGISTIC)
+			return RidgeWordClassifier.train(data.parts, instances, ridge(), null);
 		
-	private Logistic buildClassifier(String word, RoundSet trainingSet) throws Exception {
-		Logistic logistic = new Logistic();
-		if (Parameters.USE_RIDGE)
-			logistic.setRidge(100);
 		Instances dataset = new Instances("Dataset", atts, 1000);
 		
 		/*
@@ -188,28 +566,130 @@ public class LogisticModel {
 		}
 		*/
 		
-		for (Round round : trainingSet.rounds) {
-			//if ((word.contains(" ") && round.hasBigram(word)) || (!word.contains(" ") && round.hasWord(word))) {
-			if (round.hasWord(word)) {
-				for (Referent ref : round.referents) {
-					Instance instance = toInstance(ref);
-					double totalWeight = round.weight * (ref.target ? 19 : 1);
-					instance.setWeight(totalWeight);
-					dataset.add(instance);
-				}
-			}
+		int[] rows = new int[instances.size];
+		int[] parts = instances.split(data.parts, rows);
+		for (int i = 0; i < instances.size; i++) {
+			dataset.add(toInstance(data.parts[parts[i]], rows[i], instances.weights[i]));
 		}
 		
 		dataset.setClass(TARGET);
 		
+		// The few very frequent words dominate the training time, so their loss and gradient are summed over partitions that can be computed in parallel
+		Logistic logistic = dataset.numInstances() >= Parameters.PARALLEL_MODEL_INSTANCES ? new ParallelLogistic() : new Logistic();
+		if (Parameters.USE_RIDGE)
+			logistic.setRidge(Parameters.RIDGE);
+		
 		logistic.buildClassifier(dataset);
 	
-		return logistic;
+		return new WekaWordClassifier(logistic, this);
 	}
 	
+	/**
+	 * Retrains a native word model after rounds have been added to the training set. 
+	 * Only the instances of the new rounds are added to the word's cached instances, and the optimizer starts from the current model.
+	 */
+	private WordClassifier updateClassifier(int word, TrainingData data, int[][] rounds) {
+		WordInstances instances = updatedInstances.get(word);
+		int last = rounds.length - 1;
+		if (instances == null) {
+			instances = data.getInstances(rounds);
+			updatedInstances.put(word, instances);
+		} else {
+			// Only the last training set (this model's own) grows
+			int from = Arrays.binarySearch(rounds[last], instances.rounds);
+			data.addInstances(instances, last, rounds[last], from < 0 ? -from - 1 : from);
+		}
+		if (rounds[last].length > 0)
+			instances.rounds = rounds[last][rounds[last].length - 1] + 1;
+		WordClassifier current = getModel(word);
+		return RidgeWordClassifier.train(data.parts, instances, ridge(), 
+				current instanceof RidgeWordClassifier ? (RidgeWordClassifier) current : null);
+	}
+	
+	/**
+	 * The training sets of a model (see getTrainingSets) and their feature stores. The instances of a word index the concatenation of the stores
+	 * (as in PowerEstimator.estimate), so an overlay reads the background's rows in place.
+	 */
+	private static class TrainingData {
+		
+		private final RoundSet[] sets;
+		private final FeatureStore[] parts;
+		// The first row of each feature store in the concatenation
+		private final int[] offsets;
+		
+		private TrainingData(List<RoundSet> sets) {
+			this.sets = sets.toArray(new RoundSet[0]);
+			this.parts = new FeatureStore[this.sets.length];
+			this.offsets = new int[this.sets.length];
+			for (int s = 0; s < this.sets.length; s++) {
+				parts[s] = this.sets[s].getFeatures();
+				if (s > 0)
+					offsets[s] = offsets[s - 1] + parts[s - 1].size();
+			}
+		}
+		
+		/**
+		 * Returns the indices of the rounds where a word occurs, for each training set
+		 */
+		private int[][] getRoundIndices(int word) {
+			int[][] rounds = new int[sets.length][];
+			for (int s = 0; s < sets.length; s++) {
+				rounds[s] = sets[s].getRoundIndices(word);
+			}
+			return rounds;
+		}
+		
+		private long getInstanceCount(int[][] rounds) {
+			long count = 0;
+			for (int s = 0; s < sets.length; s++) {
+				for (int r : rounds[s]) {
+					count += parts[s].getRoundEnd(r) - parts[s].getRoundStart(r);
+				}
+			}
+			return count;
+		}
+		
+		/**
+		 * Returns the instances of the rounds of all training sets
+		 */
+		private WordInstances getInstances(int[][] rounds) {
+			WordInstances instances = new WordInstances((int) getInstanceCount(rounds));
+			for (int s = 0; s < sets.length; s++) {
+				addInstances(instances, s, rounds[s], 0);
+			}
+			return instances;
+		}
+		
+		/**
+		 * Adds the instances of the rounds of a training set from the given position in the round indices
+		 */
+		private void addInstances(WordInstances instances, int set, int[] rounds, int from) {
+			FeatureStore features = parts[set];
+			for (int i = from; i < rounds.length; i++) {
+				int r = rounds[i];
+				double weight = sets[set].rounds.get(r).weight;
+				for (int row = features.getRoundStart(r); row < features.getRoundEnd(r); row++) {
+					instances.add(offsets[set] + row, weight * (features.isTarget(row) ? 19 : 1));
+				}
+			}
+		}
+		
+	}
+	
+	private static double ridge() {
+		// Weka's Logistic uses a ridge of 1e-8 by default
+		return Parameters.USE_RIDGE ? Parameters.RIDGE : 1e-8;
+	}
+	
+	/**
+	 * Creates an instance from a referent. A shape which the model was not trained with is missing, as in toInstance(FeatureStore, int, double).
+	 */
 	public DenseInstance toInstance(Referent ref) {
 		DenseInstance instance = new DenseInstance(atts.size());
-		instance.setValue(SHAPE, ref.shape);
+		if (ref.shape != null && SHAPE.indexOfValue(ref.shape) >= 0)
+			instance.setValue(SHAPE, ref.shape);
+		else
+			instance.setMissing(SHAPE);
 		instance.setValue(SIZE, ref.size);
 		instance.setValue(RED, ref.red);
 		instance.setValue(GREEN, ref.green);
@@ -224,57 +704,163 @@ public class LogisticModel {
 		return instance;
 	}
 
+	/**
+	 * Creates an instance directly from a row of a feature store
+	 */
+	public DenseInstance toInstance(FeatureStore features, int row, double weight) {
+		double[] values = new double[atts.size()];
+		int shape = features.getShape(row);
+		values[SHAPE.index()] = shape < 0 ? Utils.missingValue() : shape;
+		values[SIZE.index()] = features.get(FeatureStore.SIZE, row);
+		values[RED.index()] = features.get(FeatureStore.RED, row);
+		values[GREEN.index()] = features.get(FeatureStore.GREEN, row);
+		values[BLUE.index()] = features.get(FeatureStore.BLUE, row);
+		values[POSX.index()] = features.get(FeatureStore.POSX, row);
+		values[POSY.index()] = features.get(FeatureStore.POSY, row);
+		values[MIDX.index()] = features.get(FeatureStore.MIDX, row);
+		values[MIDY.index()] = features.get(FeatureStore.MIDY, row);
+		// "true" is the first value of the target attribute
+		values[TARGET.index()] = features.isTarget(row) ? 0 : 1;
+		return new DenseInstance(weight, values);
+	}
+
 	public DenseInstance toInstance(Referent ref, boolean target) {
 		DenseInstance instance = toInstance(ref);
 		instance.setValue(TARGET, target ? "true" : "false");
 		return instance;
 	}
 	
-	public double score(String word, Instance inst) throws Exception {
-		if (wordModels.containsKey(word)) {
-			Logistic model = wordModels.get(word);
-			return score(inst, model);
-		} else {
-			return 0.5;
-		}
+	public double score(String word, Referent ref) throws Exception {
+		return score(TokenDictionary.lookup(word), ref);
+	}
+
+	public double score(int word, Referent ref) throws Exception {
+		if (Parameters.COMPILED_SCORING)
+			return getCompiledScorer().score(word, ref);
+		ScoreCache cache = getScoreCache();
+		Double cached = cache == null ? null : cache.get(word, ref);
+		if (cached != null)
+			return cached;
+		WordClassifier model = getModel(word);
+		double score = model != null ? model.score(ref) : 0.5;
+		if (cache != null)
+			cache.put(word, ref, score);
+		return score;
 	}
 	
-	private double score(Instance inst, Logistic model) throws Exception {
-		double[] dist = model.distributionForInstance(inst);
-		return dist[0];
+	/**
+	 * Scores the referent in a row of a feature store
+	 */
+	public double score(int word, FeatureStore features, int row) throws Exception {
+		if (Parameters.COMPILED_SCORING && features.getShapes() == getCompiledScorer().getShapes())
+			return getCompiledScorer().score(word, features, row);
+		ScoreCache cache = getScoreCache();
+		Double cached = cache == null ? null : cache.get(word, features, row);
+		if (cached != null)
+			return cached;
+		WordClassifier model = getModel(word);
+		double score = model != null ? model.score(features, row) : 0.5;
+		if (cache != null)
+			cache.put(word, features, row, score);
+		return score;
 	}
 	
-	public double score(String word, Referent ref) throws Exception {
-		return score(word, toInstance(ref));
+	/**
+	 * Returns the cache of word scores, or null if Parameters.SCORE_CACHE_SIZE is 0. 
+	 * The compiled scorer does not use it, since a compiled score is cheaper than a lookup.
+	 */
+	private ScoreCache getScoreCache() {
+		// Without a cache, scoring does not take the lock
+		if (Parameters.SCORE_CACHE_SIZE <= 0)
+			return null;
+		synchronized (this) {
+			if (scoreCache == null)
+				scoreCache = new ScoreCache(Parameters.SCORE_CACHE_SIZE);
+			return scoreCache;
+		}
 	}
-
-	private double score(Referent ref, Logistic model) throws Exception {
-		return score(toInstance(ref), model);
+	
+	/**
+	 * Drops the cached word scores, e.g. at the start of a new session
+	 */
+	public synchronized void clearScoreCache() {
+		scoreCache = null;
 	}
 	
 	
+	/**
+	 * Returns the word models compiled into a flat coefficient table. For an overlay, the table starts as a copy of the background's table.
+	 */
+	public synchronized CompiledScorer getCompiledScorer() throws Exception {
+		if (compiled == null) {
+			if (background != null) {
+				compiled = new CompiledScorer(background.getCompiledScorer());
+				for (Round round : trainingSet.rounds) {
+					compile(round.getUniqueWordIds());
+				}
+			} else {
+				compiled = new CompiledScorer(trainingSet.getFeatures().getShapes());
+				compile(vocab.getWordIds());
+				for (int word : wordModels.keySet()) {
+					compile(new int[] {word});
+				}
+			}
+		}
+		return compiled;
+	}
+	
+	private void compile(int[] words) throws Exception {
+		for (int word : words) {
+			WordClassifier model = getModel(word);
+			RidgeWordClassifier linear;
+			if (model == null)
+				linear = null;
+			else if (model instanceof RidgeWordClassifier && ((RidgeWordClassifier) model).getShapes() == compiled.getShapes())
+				linear = (RidgeWordClassifier) model;
+			else
+				linear = RidgeWordClassifier.probe(model, compiled.getShapes());
+			compiled.set(word, linear, Math.log10(vocab.getCount(word, 3)), power(word));
+		}
+	}
+	
 	public double power(String word) {
-		return power.getOrDefault(word, 0d);
+		return power(TokenDictionary.lookup(word));
+	}
+	
+	public double power(int word) {
+		Double result = power.get(word);
+		if (result == null)
+			return background != null ? background.power(word) : 0d;
+		return result;
 	}
 	
 	public double freq(String word) {
 		return Math.log10(vocab.getCount(word,3));
 	}
 	
+	public double freq(int word) {
+		return Math.log10(vocab.getCount(word,3));
+	}
+	
 	/**
 	 * Returns a ranking of the referents in a round
 	 */
 	public List<Referent> rank(Round round) throws Exception {
+		if (Parameters.COMPILED_SCORING)
+			return rank(round, round.referents.size());
 		final Map<Referent,Double> scores = new HashMap<>();
-		for (Referent ref : round.referents) {
-			Instance inst = toInstance(ref);
+		int[] words = round.getWordIds();
+		FeatureStore features = new FeatureStore(trainingSet.getFeatures().getShapes(), round.referents.size());
+		features.add(round);
+		for (int row = 0; row < features.size(); row++) {
+			Referent ref = round.referents.get(row);
 			Sum sum = new Sum();
-			for (String word : round.getWords()) {
-				double score = score(word, inst);
+			for (int word : words) {
+				double score = score(word, features, row);
 				if (Parameters.WEIGHT_BY_FREQ)
 					score *= Math.log10(vocab.getCount(word,3));
 				if (Parameters.WEIGHT_BY_POWER)
-					score *= power.getOrDefault(word, 0.0);
+					score *= power(word);
 				//score *= predict.getOrDefault(word, 0.0);
 				sum.increment(score);
 			}
@@ -290,10 +876,29 @@ public class LogisticModel {
 		return ranking;
 	}
 	
+	/**
+	 * Returns the k highest ranked referents of a round
+	 */
+	public List<Referent> rank(Round round, int k) throws Exception {
+		if (Parameters.COMPILED_SCORING) {
+			int[] order = new int[Math.min(k, round.referents.size())];
+			int m = ROUND_SCORER.get().rank(getCompiledScorer(), round, order.length, order);
+			List<Referent> ranking = new ArrayList<>(m);
+			for (int i = 0; i < m; i++) {
+				ranking.add(round.referents.get(order[i]));
+			}
+			return ranking;
+		}
+		List<Referent> ranking = rank(round);
+		return new ArrayList<>(ranking.subList(0, Math.min(k, ranking.size())));
+	}
+	
 	/**
 	 * Returns the rank of the target referent in a round
 	 */
 	public int targetRank(Round round) throws Exception {
+		if (Parameters.COMPILED_SCORING)
+			return ROUND_SCORER.get().targetRank(getCompiledScorer(), round);
 		int rank = 0;
 		for (Referent ref : rank(round)) {
 			rank++;
@@ -306,51 +911,88 @@ public class LogisticModel {
 	/**
 	 * Evaluates a SessionSet and returns the mean rank
 	 */
-	private Result eval(SessionSet set) throws Exception {
+	private Result eval(SessionSet set, PrintStream out) throws Exception {
 		Result result = new Result();
-		storeModel();
 		for (Session session : set.sessions) {
+			// Each session adapts its own overlay, so that the updates do not carry over to the next session
+			LogisticModel model = Parameters.UPDATE_MODEL ? overlay() : this;
+			model.clearScoreCache();
 			Result resultR = new Result();
 			for (Round round : session.rounds) {
-				int rank = targetRank(round);
+				int rank = model.targetRank(round);
 				resultR.increment(rank, rank == 1 ? 1d : 0d, 1d/rank);
 				if (Parameters.UPDATE_MODEL)
-					updateModel(round);
+					model.updateModel(round);
 			}
-			System.out.println(session.name + "\t" + resultR);
+			out.println(session.name + "\t" + resultR);
 			result.increment(resultR);
-			retrieveModel();
 		}
 		return result;
 	}
 	
 	/**
-	 * Performs cross validation on a SessionSet and returns the mean rank
+	 * Performs cross validation on a SessionSet and returns the mean rank.
+	 * With Parameters.CV_THREADS > 1 the folds run concurrently, and their output is buffered and printed in fold order.
 	 */
-	public static Result crossValidate(SessionSet set) {
+	public static Result crossValidate(SessionSet set) throws Exception {
 		final Result result = new Result();
+		// The joint trainer standardizes over all training referents, so its models would not be exactly the same as in the naive procedure.
+		// The full model is always trained rather than loaded from the model cache, so that the reused models are the ones the folds would train.
+		final LogisticModel full;
+		if (Parameters.REUSE_FOLD_MODELS && !Parameters.JOINT_TRAINING) {
+			full = new LogisticModel();
+			full.train(set, false);
+		} else {
+			full = null;
+		}
 		set.crossValidate((training, testing) -> {
-			try {
-				LogisticModel model = new LogisticModel();
-				model.train(training);
-				Result resultR = model.eval(new SessionSet(testing));
-				System.out.println(testing.name + "\t" + resultR);
-				result.increment(resultR);
+			ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+			try (PrintStream out = new PrintStream(buffer)) {
+				LogisticModel model;
+				if (full != null) {
+					model = full.fold(training, testing);
+				} else {
+					model = new LogisticModel();
+					model.train(training);
+				}
+				Result resultR = model.eval(new SessionSet(testing), out);
+				out.println(testing.name + "\t" + resultR);
+				return new Fold(buffer, resultR);
 			} catch (Exception e) {
 				e.printStackTrace();
+				return new Fold(buffer, null);
 			}
-		});
+		}, fold -> {
+			System.out.print(fold.output);
+			if (fold.result != null)
+				result.increment(fold.result);
+		}, Parameters.CV_THREADS, Parameters.CV_MEMORY_LIMIT * 1024 * 1024);
 		return result;
 	}
 	
+	/**
+	 * The output and result of a cross-validation fold
+	 */
+	private static class Fold {
+		
+		private final String output;
+		private final Result result;
+		
+		private Fold(ByteArrayOutputStream output, Result result) {
+			this.output = output.toString();
+			this.result = result;
+		}
+		
+	}
+	
 	public static Result validate(SessionSet training, SessionSet testing) throws Exception {
 		LogisticModel model = new LogisticModel();
 		model.train(training);
-		Result result = model.eval(testing);
+		Result result = model.eval(testing, System.out);
 		return result;
 	}
 
-	public static void run(SessionSet set) {
+	public static void run(SessionSet set) throws Exception {
 		long t = System.currentTimeMillis();
 		Result result = crossValidate(set);
 		t = (System.currentTimeMillis() - t) / 1000;
@@ -0,0 +1,233 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.CRC32;
+
+import se.kth.speech.coin.tangrams.data.Parameters;
+import se.kth.speech.coin.tangrams.data.TokenDictionary;
+import se.kth.speech.coin.tangrams.data.Vocabulary;
+import weka.classifiers.functions.Logistic;
+
+/**
+ * A compact binary snapshot of a trained LogisticModel: the shapes, the unpruned word counts, and the power and model of each word.
+ * Native models are stored as their coefficients, and Weka models as the serialized Logistic, so that both are restored exactly.
+ * Snapshots are kept in a cache directory next to the training sessions, in files named by a key computed from the digest of the session files,
+ * the training settings and the version of the trainer, so that a model is only retrained when one of them has changed.
+ */
+public class ModelSnapshot {
+
+	private static final int MAGIC = 0x54474d53;
+
+	// Increase when the format changes, so that old snapshots are rebuilt
+	private static final int VERSION = 1;
+
+	// Increase when the training of the word models (RidgeWordClassifier, ParallelLogistic, JointLogisticTrainer or the power) changes, so that models from an older trainer are retrained
+	private static final int TRAINER_VERSION = 2;
+
+	public List<String> shapes;
+
+	public Vocabulary counts;
+
+	public Map<Integer,RidgeWordClassifier> models = new HashMap<>();
+
+	public Map<Integer,Logistic> wekaModels = new HashMap<>();
+
+	public Map<Integer,Double> power = new HashMap<>();
+
+	/**
+	 * Returns the key of the model trained on sessions with the given digest (see SessionSet.getDigest) with the current Parameters
+	 */
+	public static byte[] key(byte[] digest) throws IOException {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+		md.update(digest);
+		md.update((VERSION + "\t" + TRAINER_VERSION + "\t" + ParallelLogistic.PARTITION_SIZE + "\t" + RidgeWordClassifier.PARTITION_SIZE + "\t" + Parameters.getTrainingSetting()).getBytes(StandardCharsets.UTF_8));
+		return md.digest();
+	}
+
+	/**
+	 * Returns the snapshot file for a key, in the cache directory of a session directory or session list file
+	 */
+	public static File getFile(File source, byte[] key) {
+		File dir = source.isDirectory() ? new File(source, ".models") : new File(source.getAbsoluteFile().getParentFile(), ".models");
+		StringBuilder name = new StringBuilder();
+		for (byte b : key) {
+			name.append(String.format("%02x", b));
+		}
+		return new File(dir, name + ".model");
+	}
+
+	/**
+	 * Reads a count, and checks that the rest of the file can hold that many items of at least the given size
+	 */
+	private static int readCount(DataInputStream in, long length, int itemBytes) throws IOException {
+		int count = in.readInt();
+		if (count < 0 || (long) count * itemBytes > length)
+			throw new IOException("Invalid count " + count);
+		return count;
+	}
+
+	/**
+	 * Reads a snapshot, or returns null if there is no valid snapshot for the key (including when the file is truncated or corrupt)
+	 */
+	public static ModelSnapshot read(File file, byte[] key) throws IOException {
+		if (!file.isFile())
+			return null;
+		long length = file.length();
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readByte() != key.length)
+				return null;
+			for (byte b : key) {
+				if (in.readByte() != b)
+					return null;
+			}
+			if (in.readInt() != RidgeWordClassifier.FEATURES.length)
+				return null;
+			ModelSnapshot snapshot = new ModelSnapshot();
+			String[] shapes = new String[readCount(in, length, 2)];
+			for (int s = 0; s < shapes.length; s++) {
+				shapes[s] = in.readUTF();
+			}
+			snapshot.shapes = Collections.unmodifiableList(Arrays.asList(shapes));
+			snapshot.counts = new Vocabulary();
+			int wordCount = readCount(in, length, 6);
+			for (int i = 0; i < wordCount; i++) {
+				int word = TokenDictionary.id(in.readUTF());
+				snapshot.counts.setCount(word, in.readInt());
+			}
+			int modelCount = readCount(in, length, 2 + 8 * (1 + shapes.length + RidgeWordClassifier.FEATURES.length) + 1);
+			double[] shapeCoef = new double[shapes.length];
+			double[] featureCoef = new double[RidgeWordClassifier.FEATURES.length];
+			for (int i = 0; i < modelCount; i++) {
+				int word = TokenDictionary.id(in.readUTF());
+				double intercept = in.readDouble();
+				for (int s = 0; s < shapeCoef.length; s++) {
+					shapeCoef[s] = in.readDouble();
+				}
+				for (int f = 0; f < featureCoef.length; f++) {
+					featureCoef[f] = in.readDouble();
+				}
+				snapshot.models.put(word, RidgeWordClassifier.create(snapshot.shapes, intercept, shapeCoef, featureCoef));
+				readPower(in, snapshot, word);
+			}
+			int wekaCount = readCount(in, length, 15);
+			for (int i = 0; i < wekaCount; i++) {
+				int word = TokenDictionary.id(in.readUTF());
+				byte[] bytes = new byte[readCount(in, length, 1)];
+				long checksum = in.readLong();
+				in.readFully(bytes);
+				// A corrupt serialized model could make the deserialization allocate arbitrarily large arrays, so it is checked first
+				if (checksum(bytes) != checksum)
+					return null;
+				snapshot.wekaModels.put(word, readLogistic(bytes));
+				readPower(in, snapshot, word);
+			}
+			return snapshot;
+		} catch (IOException | ClassNotFoundException | RuntimeException e) {
+			// Truncated or corrupt snapshot, so the model is retrained
+			return null;
+		}
+	}
+
+	private static void readPower(DataInputStream in, ModelSnapshot snapshot, int word) throws IOException {
+		if (in.readByte() != 0)
+			snapshot.power.put(word, in.readDouble());
+	}
+
+	private void writePower(DataOutputStream out, int word) throws IOException {
+		Double power = this.power.get(word);
+		out.writeByte(power != null ? 1 : 0);
+		if (power != null)
+			out.writeDouble(power);
+	}
+
+	/**
+	 * Deserializes a Logistic. Only Weka and JDK classes are resolved, so a corrupt or foreign file cannot instantiate anything else.
+	 */
+	private static Logistic readLogistic(byte[] bytes) throws IOException, ClassNotFoundException {
+		try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes)) {
+			@Override
+			protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+				String name = desc.getName().replaceFirst("^\\[+L?", "");
+				if (name.length() > 1 && !name.startsWith("weka.") && !name.startsWith("java.") && !name.equals(ParallelLogistic.class.getName()))
+					throw new InvalidClassException(desc.getName(), "Unexpected class in model snapshot");
+				return super.resolveClass(desc);
+			}
+		}) {
+			return (Logistic) in.readObject();
+		}
+	}
+
+	private static long checksum(byte[] bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return crc.getValue();
+	}
+
+	private static byte[] writeLogistic(Logistic logistic) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(logistic);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Writes the snapshot. It is written to a temporary file first, so that readers never see a partial snapshot.
+	 */
+	public void write(File file, byte[] key) throws IOException {
+		file.getParentFile().mkdirs();
+		File tmp = new File(file.getPath() + ".tmp");
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeByte(key.length);
+			out.write(key);
+			out.writeInt(RidgeWordClassifier.FEATURES.length);
+			out.writeInt(shapes.size());
+			for (String shape : shapes) {
+				out.writeUTF(shape);
+			}
+			int[] words = counts.getWordIds();
+			out.writeInt(words.length);
+			for (int word : words) {
+				out.writeUTF(TokenDictionary.word(word));
+				out.writeInt(counts.getCount(word, 0));
+			}
+			out.writeInt(models.size());
+			for (Map.Entry<Integer,RidgeWordClassifier> entry : models.entrySet()) {
+				RidgeWordClassifier model = entry.getValue();
+				out.writeUTF(TokenDictionary.word(entry.getKey()));
+				out.writeDouble(model.getIntercept());
+				for (double coef : model.getShapeCoef()) {
+					out.writeDouble(coef);
+				}
+				for (double coef : model.getFeatureCoef()) {
+					out.writeDouble(coef);
+				}
+				writePower(out, entry.getKey());
+			}
+			out.writeInt(wekaModels.size());
+			for (Map.Entry<Integer,Logistic> entry : wekaModels.entrySet()) {
+				byte[] bytes = writeLogistic(entry.getValue());
+				out.writeUTF(TokenDictionary.word(entry.getKey()));
+				out.writeInt(bytes.length);
+				out.writeLong(checksum(bytes));
+				out.write(bytes);
+				writePower(out, entry.getKey());
+			}
+		}
+		Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+}
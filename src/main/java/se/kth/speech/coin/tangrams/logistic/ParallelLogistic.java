@@ -0,0 +1,301 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import weka.classifiers.functions.Logistic;
+import weka.core.Instance;
+import weka.core.Instances;
+import weka.core.Optimization;
+import weka.core.RevisionUtils;
+import weka.core.Utils;
+import weka.filters.Filter;
+import weka.filters.unsupervised.attribute.NominalToBinary;
+import weka.filters.unsupervised.attribute.RemoveUseless;
+import weka.filters.unsupervised.attribute.ReplaceMissingValues;
+
+/**
+ * Weka's ridge logistic regression, with the loss and gradient summed over fixed partitions of the instances.
+ * When built inside a fork/join pool, the partitions are computed in parallel.
+ * The partial sums are always added in partition order, so the model does not depend on the number of threads.
+ */
+public class ParallelLogistic extends Logistic {
+
+	private static final long serialVersionUID = 1L;
+
+	// Number of instances in each partition of the loss and gradient
+	public static int PARTITION_SIZE = 2048;
+
+	private ReplaceMissingValues replaceMissing;
+	private RemoveUseless removeUseless;
+	private NominalToBinary nominalToBinary;
+
+	/**
+	 * Same as Logistic.buildClassifier (filters, standardization, starting point and optimizer), apart from how the sums are computed
+	 */
+	@Override
+	public void buildClassifier(Instances train) throws Exception {
+		getCapabilities().testWithFail(train);
+		train = new Instances(train);
+		train.deleteWithMissingClass();
+
+		replaceMissing = new ReplaceMissingValues();
+		replaceMissing.setInputFormat(train);
+		train = Filter.useFilter(train, replaceMissing);
+		removeUseless = new RemoveUseless();
+		removeUseless.setInputFormat(train);
+		train = Filter.useFilter(train, removeUseless);
+		nominalToBinary = new NominalToBinary();
+		nominalToBinary.setInputFormat(train);
+		train = Filter.useFilter(train, nominalToBinary);
+
+		m_ClassIndex = train.classIndex();
+		m_NumClasses = train.numClasses();
+		int nK = m_NumClasses - 1;
+		int nR = m_NumPredictors = train.numAttributes() - 1;
+		int nC = train.numInstances();
+
+		m_Data = new double[nC][nR + 1];
+		int[] cls = new int[nC];
+		double[] weights = new double[nC];
+		double[] xMean = new double[nR + 1];
+		double[] xSD = new double[nR + 1];
+		double[] sY = new double[nK + 1];
+		double totWeights = 0;
+		m_Par = new double[nR + 1][nK];
+
+		for (int i = 0; i < nC; i++) {
+			Instance current = train.instance(i);
+			cls[i] = (int) current.classValue();
+			weights[i] = current.weight();
+			totWeights += weights[i];
+			m_Data[i][0] = 1;
+			int j = 1;
+			for (int k = 0; k <= nR; k++) {
+				if (k != m_ClassIndex) {
+					double x = current.value(k);
+					m_Data[i][j] = x;
+					xMean[j] += weights[i] * x;
+					xSD[j] += weights[i] * x * x;
+					j++;
+				}
+			}
+			sY[cls[i]]++;
+		}
+
+		if (totWeights <= 1 && nC > 1)
+			throw new Exception("Sum of weights of instances less than 1, please reweight!");
+
+		xMean[0] = 0;
+		xSD[0] = 1;
+		for (int j = 1; j <= nR; j++) {
+			xMean[j] = xMean[j] / totWeights;
+			if (totWeights > 1)
+				xSD[j] = Math.sqrt(Math.abs(xSD[j] - totWeights * xMean[j] * xMean[j]) / (totWeights - 1));
+			else
+				xSD[j] = 0;
+		}
+
+		for (int i = 0; i < nC; i++) {
+			for (int j = 0; j <= nR; j++) {
+				if (xSD[j] != 0)
+					m_Data[i][j] = (m_Data[i][j] - xMean[j]) / xSD[j];
+			}
+		}
+
+		double[] x = new double[(nR + 1) * nK];
+		double[][] b = new double[2][x.length];
+		for (int p = 0; p < nK; p++) {
+			x[p * (nR + 1)] = Math.log(sY[p] + 1.0) - Math.log(sY[nK] + 1.0);
+		}
+		Arrays.fill(b[0], Double.NaN);
+		Arrays.fill(b[1], Double.NaN);
+
+		Optimization opt = new PartitionedOptimization(cls, weights);
+		opt.setDebug(m_Debug);
+		if (getMaxIts() == -1) {
+			x = opt.findArgmin(x, b);
+			while (x == null) {
+				x = opt.getVarbValues();
+				x = opt.findArgmin(x, b);
+			}
+		} else {
+			opt.setMaxIteration(getMaxIts());
+			x = opt.findArgmin(x, b);
+			if (x == null)
+				x = opt.getVarbValues();
+		}
+
+		m_LL = -opt.getMinFunction();
+		m_Data = null;
+
+		for (int i = 0; i < nK; i++) {
+			m_Par[0][i] = x[i * (nR + 1)];
+			for (int j = 1; j <= nR; j++) {
+				m_Par[j][i] = x[i * (nR + 1) + j];
+				if (xSD[j] != 0) {
+					m_Par[j][i] /= xSD[j];
+					m_Par[0][i] -= m_Par[j][i] * xMean[j];
+				}
+			}
+		}
+	}
+
+	@Override
+	public double[] distributionForInstance(Instance instance) throws Exception {
+		replaceMissing.input(instance);
+		instance = replaceMissing.output();
+		removeUseless.input(instance);
+		instance = removeUseless.output();
+		nominalToBinary.input(instance);
+		instance = nominalToBinary.output();
+
+		double[] data = new double[m_NumPredictors + 1];
+		data[0] = 1;
+		int j = 1;
+		for (int k = 0; k <= m_NumPredictors; k++) {
+			if (k != m_ClassIndex)
+				data[j++] = instance.value(k);
+		}
+
+		double[] v = new double[m_NumClasses];
+		for (int c = 0; c < m_NumClasses - 1; c++) {
+			for (int k = 0; k <= m_NumPredictors; k++)
+				v[c] += m_Par[k][c] * data[k];
+		}
+		v[m_NumClasses - 1] = 0;
+
+		double[] prob = new double[m_NumClasses];
+		for (int m = 0; m < m_NumClasses; m++) {
+			double sum = 0;
+			for (int n = 0; n < m_NumClasses - 1; n++)
+				sum += Math.exp(v[n] - v[m]);
+			prob[m] = 1 / (sum + Math.exp(-v[m]));
+		}
+		return prob;
+	}
+
+	/**
+	 * Weka's negative log-likelihood and gradient, summed partition by partition
+	 */
+	private class PartitionedOptimization extends Optimization {
+
+		private final int[] cls;
+		private final double[] weights;
+		private final int partitions;
+
+		public PartitionedOptimization(int[] cls, double[] weights) {
+			this.cls = cls;
+			this.weights = weights;
+			this.partitions = (cls.length + PARTITION_SIZE - 1) / PARTITION_SIZE;
+		}
+
+		@Override
+		protected double objectiveFunction(double[] x) {
+			double[][] partial = compute(x, false);
+			double nll = 0;
+			for (double[] part : partial)
+				nll += part[0];
+			int dim = m_NumPredictors + 1;
+			for (int offset = 0; offset < m_NumClasses - 1; offset++) {
+				for (int r = 1; r < dim; r++)
+					nll += m_Ridge * x[offset * dim + r] * x[offset * dim + r];
+			}
+			return nll;
+		}
+
+		@Override
+		protected double[] evaluateGradient(double[] x) {
+			double[][] partial = compute(x, true);
+			double[] grad = new double[x.length];
+			for (double[] part : partial) {
+				for (int i = 0; i < grad.length; i++)
+					grad[i] += part[i];
+			}
+			int dim = m_NumPredictors + 1;
+			for (int offset = 0; offset < m_NumClasses - 1; offset++) {
+				for (int r = 1; r < dim; r++)
+					grad[offset * dim + r] += 2 * m_Ridge * x[offset * dim + r];
+			}
+			return grad;
+		}
+
+		/**
+		 * Computes the loss (or gradient) of each partition, in parallel when running in a fork/join pool
+		 */
+		private double[][] compute(double[] x, boolean gradient) {
+			double[][] partial = new double[partitions][];
+			if (partitions > 1 && ForkJoinTask.inForkJoinPool()) {
+				List<RecursiveAction> tasks = new ArrayList<>(partitions);
+				for (int p = 0; p < partitions; p++) {
+					final int part = p;
+					tasks.add(new RecursiveAction() {
+						private static final long serialVersionUID = 1L;
+						@Override
+						protected void compute() {
+							partial[part] = partition(x, part, gradient);
+						}
+					});
+				}
+				ForkJoinTask.invokeAll(tasks);
+			} else {
+				for (int p = 0; p < partitions; p++)
+					partial[p] = partition(x, p, gradient);
+			}
+			return partial;
+		}
+
+		private double[] partition(double[] x, int part, boolean gradient) {
+			int from = part * PARTITION_SIZE;
+			int to = Math.min(cls.length, from + PARTITION_SIZE);
+			int dim = m_NumPredictors + 1;
+			int nK = m_NumClasses - 1;
+			double[] result = new double[gradient ? x.length : 1];
+			double[] num = new double[nK];
+			for (int i = from; i < to; i++) {
+				double[] data = m_Data[i];
+				for (int offset = 0; offset < nK; offset++) {
+					double exp = 0;
+					int index = offset * dim;
+					for (int j = 0; j < dim; j++)
+						exp += data[j] * x[index + j];
+					num[offset] = exp;
+				}
+				double max = num[Utils.maxIndex(num)];
+				double denom = Math.exp(-max);
+				if (gradient) {
+					for (int offset = 0; offset < nK; offset++) {
+						num[offset] = Math.exp(num[offset] - max);
+						denom += num[offset];
+					}
+					Utils.normalize(num, denom);
+					for (int offset = 0; offset < nK; offset++) {
+						int index = offset * dim;
+						double firstTerm = weights[i] * num[offset];
+						for (int q = 0; q < dim; q++)
+							result[index + q] += firstTerm * data[q];
+					}
+					if (cls[i] != nK) {
+						for (int p = 0; p < dim; p++)
+							result[cls[i] * dim + p] -= weights[i] * data[p];
+					}
+				} else {
+					double numerator = cls[i] == nK ? -max : num[cls[i]] - max;
+					for (int offset = 0; offset < nK; offset++)
+						denom += Math.exp(num[offset] - max);
+					result[0] -= weights[i] * (numerator - Math.log(denom));
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public String getRevision() {
+			return RevisionUtils.extract("$Revision: 1 $");
+		}
+	}
+
+}
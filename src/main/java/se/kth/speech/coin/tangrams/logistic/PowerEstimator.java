@@ -0,0 +1,209 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
+
+import se.kth.speech.coin.tangrams.data.FeatureStore;
+
+/**
+ * Estimates the discriminative power of words: the standard deviation of their scores over the referents of a training set.
+ * The native (linear) models are evaluated in blocks of words: each row of the feature store is read once per block, its scores for all
+ * the words are computed from the coefficient matrix of the block, and the standard deviations are accumulated in a streaming fashion.
+ * Optionally, the scores are only computed for a random sample of the rows (see sampleSize).
+ */
+public class PowerEstimator {
+
+	private static final int BLOCK_SIZE = 64;
+
+	/**
+	 * Returns the number of rows needed for the sample variance of the scores to be within the given error of the variance over all rows, 
+	 * with 95% confidence. The variance is the mean of (s_i - s_j)^2 / 2 over pairs of rows, which lies in [0, 1/2] since the scores lie in [0, 1], 
+	 * so Hoeffding's bound for U-statistics applies. An error of 0 means all rows.
+	 */
+	public static int sampleSize(int rows, double error) {
+		if (error <= 0)
+			return rows;
+		double size = 2 * Math.ceil(Math.log(2 / 0.05) / (8 * error * error));
+		return (int) Math.min(rows, size);
+	}
+
+	/**
+	 * Returns a sorted random sample of the rows, or null if all rows should be used
+	 */
+	public static int[] sample(int rows, int size, long seed) {
+		if (size >= rows)
+			return null;
+		int[] all = new int[rows];
+		for (int i = 0; i < rows; i++) {
+			all[i] = i;
+		}
+		Random random = new Random(seed);
+		for (int i = 0; i < size; i++) {
+			int j = i + random.nextInt(rows - i);
+			int tmp = all[i];
+			all[i] = all[j];
+			all[j] = tmp;
+		}
+		int[] sample = Arrays.copyOf(all, size);
+		Arrays.sort(sample);
+		return sample;
+	}
+
+	/**
+	 * Returns the standard deviation of the scores of each classifier over the given rows (or all rows if null).
+	 * The blocks of native models, and the other models one by one, are estimated on the given pool, or serially if it is null.
+	 */
+	public static double[] estimate(WordClassifier[] classifiers, FeatureStore features, int[] rows, ForkJoinPool pool) throws Exception {
+		return estimate(classifiers, new FeatureStore[] {features}, rows, pool);
+	}
+
+	/**
+	 * Returns the standard deviation of the scores of each classifier over the concatenated rows of several feature stores with the same shapes
+	 * (e.g. a training set and the rounds appended to it). The rows (or all rows if null) index the concatenation.
+	 */
+	public static double[] estimate(WordClassifier[] classifiers, FeatureStore[] parts, int[] rows, ForkJoinPool pool) throws Exception {
+		int[][] partRows = split(parts, rows);
+		FeatureStore features = parts[0];
+		double[] power = new double[classifiers.length];
+		List<Callable<Void>> tasks = new ArrayList<>();
+		int[] block = new int[BLOCK_SIZE];
+		int b = 0;
+		for (int i = 0; i < classifiers.length; i++) {
+			if (classifiers[i] instanceof RidgeWordClassifier && ((RidgeWordClassifier) classifiers[i]).getShapes() == features.getShapes()) {
+				block[b++] = i;
+				if (b == BLOCK_SIZE) {
+					int[] indices = block.clone();
+					tasks.add(() -> estimateLinear(classifiers, indices, parts, partRows, power));
+					b = 0;
+				}
+			} else {
+				int index = i;
+				tasks.add(() -> {
+					StandardDeviation stdev = new StandardDeviation();
+					for (int p = 0; p < parts.length; p++) {
+						int n = partRows[p] == null ? parts[p].size() : partRows[p].length;
+						for (int r = 0; r < n; r++) {
+							stdev.increment(classifiers[index].score(parts[p], partRows[p] == null ? r : partRows[p][r]));
+						}
+					}
+					power[index] = stdev.getResult();
+					return null;
+				});
+			}
+		}
+		if (b > 0) {
+			int[] indices = Arrays.copyOf(block, b);
+			tasks.add(() -> estimateLinear(classifiers, indices, parts, partRows, power));
+		}
+		if (pool == null || tasks.size() <= 1) {
+			for (Callable<Void> task : tasks) {
+				task.call();
+			}
+			return power;
+		}
+		try {
+			for (Future<Void> future : pool.invokeAll(tasks)) {
+				future.get();
+			}
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof Exception)
+				throw (Exception) cause;
+			throw e;
+		}
+		return power;
+	}
+
+	/**
+	 * Splits rows of the concatenation of the parts into rows of each part (null for all rows)
+	 */
+	private static int[][] split(FeatureStore[] parts, int[] rows) {
+		int[][] partRows = new int[parts.length][];
+		if (rows == null)
+			return partRows;
+		int offset = 0;
+		int from = 0;
+		for (int p = 0; p < parts.length; p++) {
+			int to = from;
+			while (to < rows.length && rows[to] < offset + parts[p].size())
+				to++;
+			partRows[p] = new int[to - from];
+			for (int r = from; r < to; r++) {
+				partRows[p][r - from] = rows[r] - offset;
+			}
+			offset += parts[p].size();
+			from = to;
+		}
+		return partRows;
+	}
+
+	private static Void estimateLinear(WordClassifier[] classifiers, int[] indices, FeatureStore[] parts, int[][] partRows, double[] power) {
+		int b = indices.length;
+		RidgeWordClassifier[] block = new RidgeWordClassifier[b];
+		for (int i = 0; i < b; i++) {
+			block[i] = (RidgeWordClassifier) classifiers[indices[i]];
+		}
+		int nf = RidgeWordClassifier.FEATURES.length;
+		int k = parts[0].getShapes().size();
+		// The coefficients of the block, laid out so that the inner loop over the words reads them in order
+		double[] intercept = new double[b];
+		double[] shapeCoef = new double[k * b];
+		double[] featureCoef = new double[nf * b];
+		for (int i = 0; i < b; i++) {
+			intercept[i] = block[i].getIntercept();
+			for (int s = 0; s < k; s++) {
+				shapeCoef[s * b + i] = block[i].getShapeCoef()[s];
+			}
+			for (int f = 0; f < nf; f++) {
+				featureCoef[i * nf + f] = block[i].getFeatureCoef()[f];
+			}
+		}
+		float[][] columns = new float[nf][];
+		double[] x = new double[nf];
+		double[] mean = new double[b];
+		double[] m2 = new double[b];
+		// The number of scores so far
+		int n = 0;
+		for (int p = 0; p < parts.length; p++) {
+			FeatureStore features = parts[p];
+			int[] rows = partRows[p];
+			for (int f = 0; f < nf; f++) {
+				columns[f] = features.getColumn(RidgeWordClassifier.FEATURES[f]);
+			}
+			int size = rows == null ? features.size() : rows.length;
+			for (int r = 0; r < size; r++) {
+				int row = rows == null ? r : rows[r];
+				int shape = features.getShape(row);
+				for (int f = 0; f < nf; f++) {
+					x[f] = columns[f][row];
+				}
+				n++;
+				for (int i = 0; i < b; i++) {
+					double logit = intercept[i] + (shape >= 0 ? shapeCoef[shape * b + i] : 0);
+					for (int f = 0; f < nf; f++) {
+						logit += featureCoef[i * nf + f] * x[f];
+					}
+					double score = 1 / (1 + Math.exp(-logit));
+					// Welford's streaming update
+					double delta = score - mean[i];
+					mean[i] += delta / n;
+					m2[i] += delta * (score - mean[i]);
+				}
+			}
+		}
+		for (int i = 0; i < b; i++) {
+			// Bias-corrected, as in commons-math's StandardDeviation
+			power[indices[i]] = n == 0 ? Double.NaN : n == 1 ? 0 : Math.sqrt(m2[i] / (n - 1));
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,590 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntConsumer;
+
+import se.kth.speech.coin.tangrams.data.FeatureStore;
+import se.kth.speech.coin.tangrams.data.Parameters;
+import se.kth.speech.coin.tangrams.data.Referent;
+
+/**
+ * A word model trained with weighted, L2-regularized (ridge) logistic regression directly on the columns of a feature store.
+ * As in Weka's Logistic, the shape is one-hot encoded, the predictors are standardized with the weighted mean and standard deviation,
+ * and the ridge penalty applies to the standardized coefficients (not the intercept). The model is fitted with Newton's method (IRLS).
+ */
+public class RidgeWordClassifier implements WordClassifier {
+
+	// The numeric features, in the same order as the numeric attributes of LogisticModel
+	public static final int[] FEATURES = {FeatureStore.SIZE, FeatureStore.RED, FeatureStore.GREEN, FeatureStore.BLUE,
+			FeatureStore.POSX, FeatureStore.POSY, FeatureStore.MIDX, FeatureStore.MIDY};
+
+	private static final int MAX_ITERATIONS = 100;
+	private static final double TOLERANCE = 1e-9;
+
+	// The size of the partitions of the instances of large models (see Parameters.PARALLEL_MODEL_INSTANCES)
+	static final int PARTITION_SIZE = 4096;
+
+	private final List<String> shapes;
+
+	// The coefficients on the original scale
+	private double intercept;
+	private final double[] shapeCoef;
+	private final double[] featureCoef = new double[FEATURES.length];
+
+	private RidgeWordClassifier(List<String> shapes) {
+		this.shapes = shapes;
+		this.shapeCoef = new double[shapes.size()];
+	}
+
+	/**
+	 * Creates a classifier from coefficients on the original scale
+	 */
+	static RidgeWordClassifier create(List<String> shapes, double intercept, double[] shapeCoef, double[] featureCoef) {
+		RidgeWordClassifier classifier = new RidgeWordClassifier(shapes);
+		classifier.intercept = intercept;
+		System.arraycopy(shapeCoef, 0, classifier.shapeCoef, 0, classifier.shapeCoef.length);
+		System.arraycopy(featureCoef, 0, classifier.featureCoef, 0, FEATURES.length);
+		return classifier;
+	}
+
+	/**
+	 * Returns a classifier with the same scores as another logistic regression over the same features (e.g. a WekaWordClassifier).
+	 * The coefficients are recovered from the log-odds of probe referents: one with an unknown shape and all features 0 (the intercept), 
+	 * one with each shape, and one with a unit step in each feature. An unknown shape therefore gets the same score as from the classifier
+	 * (Weka replaces it with the most frequent shape of the word's training instances).
+	 */
+	static RidgeWordClassifier probe(WordClassifier classifier, List<String> shapes) throws Exception {
+		double[] shapeCoef = new double[shapes.size()];
+		double[] featureCoef = new double[FEATURES.length];
+		Referent ref = new Referent();
+		ref.shape = null;
+		double intercept = logit(classifier, ref);
+		for (int f = 0; f < FEATURES.length; f++) {
+			setFeature(ref, FEATURES[f], 1f);
+			featureCoef[f] = logit(classifier, ref) - intercept;
+			setFeature(ref, FEATURES[f], 0f);
+		}
+		for (int s = 0; s < shapeCoef.length; s++) {
+			ref.shape = shapes.get(s);
+			shapeCoef[s] = logit(classifier, ref) - intercept;
+		}
+		return create(shapes, intercept, shapeCoef, featureCoef);
+	}
+
+	private static double logit(WordClassifier classifier, Referent ref) throws Exception {
+		if (classifier instanceof WekaWordClassifier)
+			return ((WekaWordClassifier) classifier).logit(ref);
+		double score = classifier.score(ref);
+		return Math.log(score) - Math.log1p(-score);
+	}
+
+	private static void setFeature(Referent ref, int feature, float value) {
+		switch (feature) {
+		case FeatureStore.SIZE: ref.size = value; break;
+		case FeatureStore.RED: ref.red = value; break;
+		case FeatureStore.GREEN: ref.green = value; break;
+		case FeatureStore.BLUE: ref.blue = value; break;
+		case FeatureStore.POSX: ref.posx = value; break;
+		case FeatureStore.POSY: ref.posy = value; break;
+		case FeatureStore.MIDX: ref.midx = value; break;
+		case FeatureStore.MIDY: ref.midy = value; break;
+		default: throw new IllegalArgumentException("Unknown feature " + feature);
+		}
+	}
+
+	/**
+	 * Trains a classifier on rows of a feature store. The rows are read in place, so no per-word copy of the features is made.
+	 * If a start classifier is given (e.g. the model of the word before new instances were added), the optimizer starts from its coefficients.
+	 */
+	public static RidgeWordClassifier train(FeatureStore features, WordInstances instances, double ridge, RidgeWordClassifier start) {
+		return train(new FeatureStore[] {features}, instances, ridge, start);
+	}
+
+	/**
+	 * Trains a classifier on rows of the concatenation of several feature stores with the same shapes (e.g. the training set of a model 
+	 * and the rounds appended to it by an overlay), which are read in place.
+	 */
+	public static RidgeWordClassifier train(FeatureStore[] parts, WordInstances instances, double ridge, RidgeWordClassifier start) {
+		List<String> shapes = parts[0].getShapes();
+		RidgeWordClassifier classifier = new RidgeWordClassifier(shapes);
+		Problem problem = new Problem(parts, instances, classifier.shapeCoef.length);
+		double[] beta = problem.fit(ridge, start == null ? new double[problem.p + 1] : problem.standardized(start, shapes));
+		problem.toOriginalScale(beta, classifier);
+		return classifier;
+	}
+
+	/**
+	 * The columns are the one-hot shapes followed by the numeric features. The optimization is done on the standardized columns, 
+	 * but these are never materialized: sums over the rows are accumulated on the original scale and then transformed. 
+	 * Models with at least Parameters.PARALLEL_MODEL_INSTANCES instances accumulate the sums over partitions of the instances, 
+	 * which are added up in order. The partitions only depend on the number of instances, so the fit does not depend on the threads.
+	 */
+	private static class Problem {
+
+		// The rows within the feature stores, and the store of each instance (null if there is only one)
+		private final int[] rows;
+		private final int[] part;
+		private final double[] weights;
+		private final int n;
+		private final int[] shape;
+		private final boolean[] target;
+		// The feature columns of each store
+		private final float[][][] columns;
+		private final int k;
+		private final int p;
+		private final double[] mean;
+		private final double[] sd;
+
+		// The first instance of each partition, followed by n
+		private final int[] bounds;
+		private final Sums[] sums;
+
+		Problem(FeatureStore[] parts, WordInstances instances, int k) {
+			this.weights = instances.weights;
+			this.n = instances.size;
+			if (parts.length == 1) {
+				this.rows = instances.rows;
+				this.part = null;
+			} else {
+				this.rows = new int[n];
+				this.part = instances.split(parts, rows);
+			}
+			this.k = k;
+			this.p = k + FEATURES.length;
+			this.shape = new int[n];
+			this.target = new boolean[n];
+			for (int i = 0; i < n; i++) {
+				FeatureStore features = parts[part == null ? 0 : part[i]];
+				shape[i] = features.getShape(rows[i]);
+				target[i] = features.isTarget(rows[i]);
+			}
+			columns = new float[parts.length][FEATURES.length][];
+			for (int q = 0; q < parts.length; q++) {
+				for (int f = 0; f < FEATURES.length; f++) {
+					columns[q][f] = parts[q].getColumn(FEATURES[f]);
+				}
+			}
+			mean = new double[p];
+			sd = new double[p];
+			int partitions = n < Parameters.PARALLEL_MODEL_INSTANCES ? 1 : (n + PARTITION_SIZE - 1) / PARTITION_SIZE;
+			bounds = new int[partitions + 1];
+			sums = new Sums[partitions];
+			for (int q = 0; q < partitions; q++) {
+				bounds[q] = q * PARTITION_SIZE;
+				sums[q] = new Sums(p);
+			}
+			bounds[partitions] = n;
+			standardize();
+		}
+
+		/**
+		 * Runs a task on each partition. Inside a fork/join pool (the training pool of LogisticModel), the partitions are forked 
+		 * into the same pool, so that they share its threads instead of starting new ones. Otherwise they run one after the other.
+		 */
+		private void forEachPartition(IntConsumer task) {
+			if (sums.length == 1 || !ForkJoinTask.inForkJoinPool()) {
+				for (int q = 0; q < sums.length; q++) {
+					task.accept(q);
+				}
+				return;
+			}
+			List<ForkJoinTask<?>> tasks = new ArrayList<>(sums.length);
+			for (int q = 0; q < sums.length; q++) {
+				int part = q;
+				tasks.add(ForkJoinTask.adapt(() -> task.accept(part)));
+			}
+			ForkJoinTask.invokeAll(tasks);
+		}
+
+		/**
+		 * Loads the non-zero columns of an instance into active/value, and returns their number
+		 */
+		private int load(int i, int[] active, double[] value) {
+			float[][] columns = this.columns[part == null ? 0 : part[i]];
+			int a = 0;
+			if (shape[i] >= 0) {
+				active[a] = shape[i];
+				value[a++] = 1;
+			}
+			for (int f = 0; f < FEATURES.length; f++) {
+				active[a] = k + f;
+				value[a++] = columns[f][rows[i]];
+			}
+			return a;
+		}
+
+		/**
+		 * Computes the weighted mean and standard deviation of the columns. Columns without variance get a zero coefficient.
+		 * The features are summed as differences from their values in the first instance, so that a constant feature has exactly zero variance 
+		 * (otherwise the rounding errors of the sums leave it a tiny standard deviation, which the standardized coefficient is divided by).
+		 */
+		private void standardize() {
+			double totalWeight = 0;
+			double[] sumSq = new double[p];
+			double[] shift = new double[p];
+			int[] active = sums[0].active;
+			double[] value = sums[0].value;
+			if (n > 0) {
+				// The shapes are not shifted, since only their non-zero columns are loaded
+				int a = load(0, active, value);
+				for (int j = 0; j < a; j++) {
+					if (active[j] >= k)
+						shift[active[j]] = value[j];
+				}
+			}
+			for (int i = 0; i < n; i++) {
+				double w = weights[i];
+				totalWeight += w;
+				int a = load(i, active, value);
+				for (int j = 0; j < a; j++) {
+					double x = value[j] - shift[active[j]];
+					mean[active[j]] += w * x;
+					sumSq[active[j]] += w * x * x;
+				}
+			}
+			for (int j = 0; j < p; j++) {
+				mean[j] /= totalWeight;
+				sd[j] = totalWeight > 1 ? Math.sqrt(Math.abs(sumSq[j] - totalWeight * mean[j] * mean[j]) / (totalWeight - 1)) : 0;
+				if (sd[j] < 1e-10)
+					sd[j] = 0;
+				mean[j] += shift[j];
+			}
+		}
+
+		/**
+		 * Converts standardized coefficients (intercept first) to coefficients on the original scale (intercept last)
+		 */
+		private double[] original(double[] beta) {
+			double[] c = new double[p + 1];
+			double intercept = beta[0];
+			for (int j = 0; j < p; j++) {
+				c[j] = sd[j] > 0 ? beta[j + 1] / sd[j] : 0;
+				intercept -= c[j] * mean[j];
+			}
+			c[p] = intercept;
+			return c;
+		}
+
+		/**
+		 * Converts the coefficients of a classifier to standardized coefficients (intercept first)
+		 */
+		private double[] standardized(RidgeWordClassifier classifier, List<String> shapes) {
+			double[] c = new double[p];
+			for (int j = 0; j < k; j++) {
+				c[j] = classifier.shapes == shapes ? classifier.shapeCoef[j] : classifier.shapeCoef(shapes.get(j));
+			}
+			System.arraycopy(classifier.featureCoef, 0, c, k, FEATURES.length);
+			double[] beta = new double[p + 1];
+			beta[0] = classifier.intercept;
+			for (int j = 0; j < p; j++) {
+				beta[j + 1] = c[j] * sd[j];
+				// Constant columns are folded into the intercept
+				beta[0] += c[j] * mean[j];
+			}
+			return beta;
+		}
+
+		private void toOriginalScale(double[] beta, RidgeWordClassifier classifier) {
+			double[] c = original(beta);
+			System.arraycopy(c, 0, classifier.shapeCoef, 0, k);
+			System.arraycopy(c, k, classifier.featureCoef, 0, FEATURES.length);
+			classifier.intercept = c[p];
+		}
+
+		private double eta(int i, double[] c) {
+			float[][] columns = this.columns[part == null ? 0 : part[i]];
+			double eta = c[p];
+			if (shape[i] >= 0)
+				eta += c[shape[i]];
+			for (int f = 0; f < FEATURES.length; f++) {
+				eta += c[k + f] * columns[f][rows[i]];
+			}
+			return eta;
+		}
+
+		/**
+		 * The weighted negative log-likelihood plus ridge * |beta|^2 (excluding the intercept)
+		 */
+		private double loss(double[] beta, double ridge) {
+			double[] c = original(beta);
+			forEachPartition(q -> {
+				double loss = 0;
+				for (int i = bounds[q]; i < bounds[q + 1]; i++) {
+					double eta = eta(i, c);
+					// log(1 + exp(eta)) - y * eta, computed without overflow
+					double softplus = eta > 0 ? eta + Math.log1p(Math.exp(-eta)) : Math.log1p(Math.exp(eta));
+					loss += weights[i] * (softplus - (target[i] ? eta : 0));
+				}
+				sums[q].loss = loss;
+			});
+			double loss = sums[0].loss;
+			for (int q = 1; q < sums.length; q++) {
+				loss += sums[q].loss;
+			}
+			for (int j = 1; j < beta.length; j++) {
+				loss += ridge * beta[j] * beta[j];
+			}
+			return loss;
+		}
+
+		/**
+		 * Minimizes the loss with damped Newton steps from the given start, and returns the standardized coefficients (intercept first)
+		 */
+		double[] fit(double ridge, double[] beta) {
+			int d = p + 1;
+			double[] grad = new double[d];
+			double[] hess = new double[d * d];
+			double[] step = new double[d];
+			double[] next = new double[d];
+			double loss = loss(beta, ridge);
+			for (int it = 0; it < MAX_ITERATIONS; it++) {
+				double[] c = original(beta);
+				forEachPartition(q -> accumulate(c, q));
+				Sums total = sums[0];
+				if (sums.length > 1) {
+					total = new Sums(p);
+					for (Sums part : sums) {
+						total.add(part);
+					}
+				}
+				double r0 = total.r0;
+				double h0 = total.h0;
+				double[] r1 = total.r1;
+				double[] h1 = total.h1;
+				double[] h2 = total.h2;
+				// Transform the sums to the standardized columns
+				grad[0] = r0;
+				hess[0] = h0;
+				for (int j = 0; j < p; j++) {
+					if (sd[j] == 0) {
+						// Unused column, keep its coefficient at zero
+						grad[j + 1] = 0;
+						for (int l = 0; l < d; l++) {
+							hess[(j + 1) * d + l] = 0;
+							hess[l * d + j + 1] = 0;
+						}
+						hess[(j + 1) * d + j + 1] = 1;
+						continue;
+					}
+					grad[j + 1] = (r1[j] - mean[j] * r0) / sd[j] + 2 * ridge * beta[j + 1];
+					hess[j + 1] = hess[(j + 1) * d] = (h1[j] - mean[j] * h0) / sd[j];
+					for (int l = j; l < p; l++) {
+						if (sd[l] == 0)
+							continue;
+						// Only the upper triangle is accumulated, since the active columns are in increasing order
+						double v = (h2[j * p + l] - mean[j] * h1[l] - mean[l] * h1[j] + mean[j] * mean[l] * h0) / (sd[j] * sd[l]);
+						hess[(j + 1) * d + l + 1] = hess[(l + 1) * d + j + 1] = v;
+					}
+					hess[(j + 1) * d + j + 1] += 2 * ridge;
+				}
+				// Keeps the system positive definite when the classes are (nearly) separable
+				for (int j = 0; j < d; j++) {
+					hess[j * d + j] += 1e-10;
+				}
+				solve(hess, grad, step, d);
+
+				// Halve the step until the loss does not increase
+				double t = 1;
+				double nextLoss;
+				while (true) {
+					for (int j = 0; j < d; j++) {
+						next[j] = beta[j] - t * step[j];
+					}
+					nextLoss = loss(next, ridge);
+					if (nextLoss <= loss + 1e-12 * Math.abs(loss) || t < 1e-10)
+						break;
+					t /= 2;
+				}
+				double change = 0;
+				for (int j = 0; j < d; j++) {
+					change = Math.max(change, Math.abs(next[j] - beta[j]));
+					beta[j] = next[j];
+				}
+				loss = nextLoss;
+				if (change < TOLERANCE)
+					break;
+			}
+			return beta;
+		}
+
+		/**
+		 * Accumulates the sums of a partition for the coefficients c (on the original scale)
+		 */
+		private void accumulate(double[] c, int q) {
+			Sums s = sums[q];
+			s.clear();
+			int[] active = s.active;
+			double[] value = s.value;
+			for (int i = bounds[q]; i < bounds[q + 1]; i++) {
+				double mu = sigmoid(eta(i, c));
+				double r = weights[i] * (mu - (target[i] ? 1 : 0));
+				double h = weights[i] * mu * (1 - mu);
+				s.r0 += r;
+				s.h0 += h;
+				int a = load(i, active, value);
+				for (int j = 0; j < a; j++) {
+					int cj = active[j];
+					double hx = h * value[j];
+					s.r1[cj] += r * value[j];
+					s.h1[cj] += hx;
+					for (int l = j; l < a; l++) {
+						s.h2[cj * p + active[l]] += hx * value[l];
+					}
+				}
+			}
+		}
+
+	}
+
+	/**
+	 * The sums over a partition of the instances: the loss, and on the original scale, the sums of r, r * x, h, h * x and h * x * x'
+	 */
+	private static class Sums {
+
+		private double loss;
+		private double r0;
+		private double h0;
+		private final double[] r1;
+		private final double[] h1;
+		private final double[] h2;
+
+		// The indices and values of the non-zero columns of the current row
+		private final int[] active = new int[FEATURES.length + 1];
+		private final double[] value = new double[FEATURES.length + 1];
+
+		Sums(int p) {
+			r1 = new double[p];
+			h1 = new double[p];
+			h2 = new double[p * p];
+		}
+
+		void clear() {
+			r0 = 0;
+			h0 = 0;
+			Arrays.fill(r1, 0);
+			Arrays.fill(h1, 0);
+			Arrays.fill(h2, 0);
+		}
+
+		void add(Sums other) {
+			r0 += other.r0;
+			h0 += other.h0;
+			for (int j = 0; j < r1.length; j++) {
+				r1[j] += other.r1[j];
+				h1[j] += other.h1[j];
+			}
+			for (int j = 0; j < h2.length; j++) {
+				h2[j] += other.h2[j];
+			}
+		}
+
+	}
+
+	private static double sigmoid(double eta) {
+		return 1 / (1 + Math.exp(-eta));
+	}
+
+	/**
+	 * Solves a * x = b for a symmetric positive definite a (d x d, row-major) with a Cholesky decomposition
+	 */
+	static void solve(double[] a, double[] b, double[] x, int d) {
+		double[] l = new double[d * d];
+		for (int i = 0; i < d; i++) {
+			for (int j = 0; j <= i; j++) {
+				double sum = a[i * d + j];
+				for (int k = 0; k < j; k++) {
+					sum -= l[i * d + k] * l[j * d + k];
+				}
+				if (i == j)
+					l[i * d + i] = Math.sqrt(Math.max(sum, 1e-300));
+				else
+					l[i * d + j] = sum / l[j * d + j];
+			}
+		}
+		for (int i = 0; i < d; i++) {
+			double sum = b[i];
+			for (int k = 0; k < i; k++) {
+				sum -= l[i * d + k] * x[k];
+			}
+			x[i] = sum / l[i * d + i];
+		}
+		for (int i = d - 1; i >= 0; i--) {
+			double sum = x[i];
+			for (int k = i + 1; k < d; k++) {
+				sum -= l[k * d + i] * x[k];
+			}
+			x[i] = sum / l[i * d + i];
+		}
+	}
+
+	private double logit(int shape, float size, float red, float green, float blue, float posx, float posy, float midx, float midy) {
+		// The terms are added in the same order as in score(FeatureStore, int), so both give the same score
+		double logit = intercept;
+		if (shape >= 0)
+			logit += shapeCoef[shape];
+		logit += featureCoef[0] * size;
+		logit += featureCoef[1] * red;
+		logit += featureCoef[2] * green;
+		logit += featureCoef[3] * blue;
+		logit += featureCoef[4] * posx;
+		logit += featureCoef[5] * posy;
+		logit += featureCoef[6] * midx;
+		logit += featureCoef[7] * midy;
+		return logit;
+	}
+
+	@Override
+	public double score(FeatureStore features, int row) {
+		double logit = intercept;
+		int shape = features.getShape(row);
+		if (shape >= 0)
+			logit += features.getShapes() == shapes ? shapeCoef[shape] : shapeCoef(features.getShapes().get(shape));
+		for (int f = 0; f < FEATURES.length; f++) {
+			logit += featureCoef[f] * features.get(FEATURES[f], row);
+		}
+		return sigmoid(logit);
+	}
+
+	@Override
+	public double score(Referent ref) {
+		return sigmoid(logit(shapes.indexOf(ref.shape), ref.size, ref.red, ref.green, ref.blue, ref.posx, ref.posy, ref.midx, ref.midy));
+	}
+
+	private double shapeCoef(String shape) {
+		int i = shapes.indexOf(shape);
+		return i < 0 ? 0 : shapeCoef[i];
+	}
+
+	List<String> getShapes() {
+		return shapes;
+	}
+
+	double getIntercept() {
+		return intercept;
+	}
+
+	double[] getShapeCoef() {
+		return shapeCoef;
+	}
+
+	double[] getFeatureCoef() {
+		return featureCoef;
+	}
+
+	@Override
+	public double[][] coefficients() {
+		double[][] coef = new double[1 + shapeCoef.length + featureCoef.length][1];
+		coef[0][0] = intercept;
+		for (int j = 0; j < shapeCoef.length; j++) {
+			coef[1 + j][0] = shapeCoef[j];
+		}
+		for (int f = 0; f < featureCoef.length; f++) {
+			coef[1 + shapeCoef.length + f][0] = featureCoef[f];
+		}
+		return coef;
+	}
+
+}
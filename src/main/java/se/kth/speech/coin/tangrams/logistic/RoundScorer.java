@@ -0,0 +1,162 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import java.util.Arrays;
+import java.util.List;
+
+import se.kth.speech.coin.tangrams.data.Parameters;
+import se.kth.speech.coin.tangrams.data.Referent;
+import se.kth.speech.coin.tangrams.data.Round;
+
+/**
+ * Scores all the referents of a round at once with a CompiledScorer. The features of the referents are laid out as vectors,
+ * the (unique words x referents) matrix of weighted scores is computed one word row at a time, and the score of each referent
+ * is the sum of the rows of the tokens of the round. The sums are taken in token order, so the scores are the same as the sums of
+ * CompiledScorer.score(int, Referent) taken by LogisticModel.rank without compiled scoring.
+ * The buffers are reused between rounds, so an instance must not be shared between threads.
+ */
+public class RoundScorer {
+
+	private static final int NF = RidgeWordClassifier.FEATURES.length;
+
+	// The number of referents of the current round
+	private int n = 0;
+
+	// The features of the referents, one vector per feature in the order of RidgeWordClassifier.FEATURES
+	private double[][] x = new double[NF][0];
+	// The shape index of each referent (or the index of the unknown shape)
+	private int[] shape = new int[0];
+	private double[] logit = new double[0];
+
+	// The weighted scores of each unique word (row) for each referent (column)
+	private double[] matrix = new double[0];
+
+	private double[] scores = new double[0];
+
+	/**
+	 * Scores the referents of a round (see getScore)
+	 */
+	public void score(CompiledScorer scorer, Round round) {
+		List<Referent> referents = round.referents;
+		n = referents.size();
+		if (shape.length < n) {
+			for (int f = 0; f < NF; f++) {
+				x[f] = new double[n];
+			}
+			shape = new int[n];
+			logit = new double[n];
+			scores = new double[n];
+		}
+		List<String> shapes = scorer.getShapes();
+		int k = shapes.size();
+		for (int i = 0; i < n; i++) {
+			Referent ref = referents.get(i);
+			int s = shapes.indexOf(ref.shape);
+			shape[i] = s >= 0 ? s : k;
+			x[0][i] = ref.size;
+			x[1][i] = ref.red;
+			x[2][i] = ref.green;
+			x[3][i] = ref.blue;
+			x[4][i] = ref.posx;
+			x[5][i] = ref.posy;
+			x[6][i] = ref.midx;
+			x[7][i] = ref.midy;
+		}
+		int[] unique = round.getUniqueWordIds();
+		if (matrix.length < unique.length * n)
+			matrix = new double[Math.max(unique.length * n, matrix.length * 2)];
+		double[] table = scorer.getTable();
+		int stride = scorer.getStride();
+		for (int u = 0; u < unique.length; u++) {
+			int r = scorer.row(unique[u]);
+			int offset = u * n;
+			if (r < 0) {
+				Arrays.fill(matrix, offset, offset + n, 0.5);
+			} else {
+				int base = r * stride;
+				for (int i = 0; i < n; i++) {
+					logit[i] = table[base + shape[i]];
+				}
+				for (int f = 0; f < NF; f++) {
+					double coef = table[base + k + 1 + f];
+					double[] xf = x[f];
+					for (int i = 0; i < n; i++) {
+						logit[i] += coef * xf[i];
+					}
+				}
+				for (int i = 0; i < n; i++) {
+					matrix[offset + i] = 1 / (1 + Math.exp(-logit[i]));
+				}
+			}
+			if (Parameters.WEIGHT_BY_FREQ) {
+				double freq = scorer.getFreq(r);
+				for (int i = 0; i < n; i++) {
+					matrix[offset + i] *= freq;
+				}
+			}
+			if (Parameters.WEIGHT_BY_POWER) {
+				double power = scorer.getPower(r);
+				for (int i = 0; i < n; i++) {
+					matrix[offset + i] *= power;
+				}
+			}
+		}
+		Arrays.fill(scores, 0, n, 0);
+		for (int word : round.getWordIds()) {
+			int offset = Arrays.binarySearch(unique, word) * n;
+			for (int i = 0; i < n; i++) {
+				scores[i] += matrix[offset + i];
+			}
+		}
+	}
+
+	/**
+	 * Returns the score of a referent (by its index in the round) computed by the last call to score
+	 */
+	public double getScore(int i) {
+		return scores[i];
+	}
+
+	/**
+	 * Returns the rank of the target referent in a round: one plus the number of referents which beat it.
+	 * Referents with the same score keep their order in the round, as in LogisticModel.rank.
+	 */
+	public int targetRank(CompiledScorer scorer, Round round) {
+		score(scorer, round);
+		int target = -1;
+		for (int i = 0; i < n && target < 0; i++) {
+			if (round.referents.get(i).target)
+				target = i;
+		}
+		if (target < 0)
+			return n;
+		int rank = 1;
+		for (int i = 0; i < n; i++) {
+			int cmp = Double.compare(scores[i], scores[target]);
+			if (cmp > 0 || (cmp == 0 && i < target))
+				rank++;
+		}
+		return rank;
+	}
+
+	/**
+	 * Fills in the indices of the (at most) k highest scoring referents of a round in descending order, and returns their number.
+	 * Referents with the same score keep their order in the round.
+	 */
+	public int rank(CompiledScorer scorer, Round round, int k, int[] order) {
+		score(scorer, round);
+		int m = 0;
+		for (int i = 0; i < n; i++) {
+			if (m == k && (k == 0 || Double.compare(scores[order[k - 1]], scores[i]) >= 0))
+				continue;
+			// Insertion into the top k, dropping the last one if it is full
+			int j = m < k ? m++ : k - 1;
+			while (j > 0 && Double.compare(scores[order[j - 1]], scores[i]) < 0) {
+				order[j] = order[j - 1];
+				j--;
+			}
+			order[j] = i;
+		}
+		return m;
+	}
+
+}
@@ -0,0 +1,126 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import se.kth.speech.coin.tangrams.data.FeatureStore;
+import se.kth.speech.coin.tangrams.data.Referent;
+
+/**
+ * A bounded cache of word scores, keyed by the word (token id) and the features of the referent, with least recently used eviction.
+ * Within a session the same pieces recur in every round and the partners reuse their expressions, so most scores are looked up rather than recomputed.
+ * The scores are unweighted, so only the words whose models are retrained have to be invalidated.
+ */
+public class ScoreCache {
+
+	private final int capacity;
+
+	private final LinkedHashMap<Key,Double> scores;
+
+	public ScoreCache(int capacity) {
+		this.capacity = capacity;
+		this.scores = new LinkedHashMap<Key,Double>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key,Double> eldest) {
+				return size() > ScoreCache.this.capacity;
+			}
+		};
+	}
+
+	/**
+	 * Returns the cached score of a word for a referent, or null
+	 */
+	public synchronized Double get(int word, Referent ref) {
+		return scores.get(new Key(word, ref));
+	}
+
+	/**
+	 * Returns the cached score of a word for the referent in a row of a feature store, or null
+	 */
+	public synchronized Double get(int word, FeatureStore features, int row) {
+		return scores.get(new Key(word, features, row));
+	}
+
+	public synchronized void put(int word, Referent ref, double score) {
+		scores.put(new Key(word, ref), score);
+	}
+
+	public synchronized void put(int word, FeatureStore features, int row, double score) {
+		scores.put(new Key(word, features, row), score);
+	}
+
+	/**
+	 * Removes the scores of the words (e.g. when their models have been retrained)
+	 */
+	public synchronized void invalidate(int[] words) {
+		if (words.length == 0 || scores.isEmpty())
+			return;
+		int[] sorted = words.clone();
+		Arrays.sort(sorted);
+		scores.keySet().removeIf(key -> Arrays.binarySearch(sorted, key.word) >= 0);
+	}
+
+	public synchronized void clear() {
+		scores.clear();
+	}
+
+	public synchronized int size() {
+		return scores.size();
+	}
+
+	/**
+	 * A word and the referent features the word models use: the shape and RidgeWordClassifier.FEATURES
+	 */
+	private static final class Key {
+
+		private final int word;
+		private final String shape;
+		private final float[] features = new float[RidgeWordClassifier.FEATURES.length];
+		private final int hash;
+
+		private Key(int word, Referent ref) {
+			this.word = word;
+			this.shape = ref.shape;
+			features[0] = ref.size;
+			features[1] = ref.red;
+			features[2] = ref.green;
+			features[3] = ref.blue;
+			features[4] = ref.posx;
+			features[5] = ref.posy;
+			features[6] = ref.midx;
+			features[7] = ref.midy;
+			this.hash = hash();
+		}
+
+		private Key(int word, FeatureStore features, int row) {
+			this.word = word;
+			int shape = features.getShape(row);
+			this.shape = shape >= 0 ? features.getShapes().get(shape) : null;
+			for (int f = 0; f < this.features.length; f++) {
+				this.features[f] = features.get(RidgeWordClassifier.FEATURES[f], row);
+			}
+			this.hash = hash();
+		}
+
+		private int hash() {
+			return (word * 31 + (shape == null ? 0 : shape.hashCode())) * 31 + Arrays.hashCode(features);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return word == other.word && hash == other.hash && (shape == null ? other.shape == null : shape.equals(other.shape))
+					&& Arrays.equals(features, other.features);
+		}
+
+	}
+
+}
@@ -24,6 +24,7 @@ public class TestDialog {
 			if (Parameters.UPDATE_MODEL) {
 				model.retrieveModel();
 			}
+			model.clearScoreCache();
 			try {
 				System.out.println(testing.name);
 				//LogisticModel model = new LogisticModel();
@@ -45,7 +46,7 @@ public class TestDialog {
 								for (String word : words) {
 									double score = model.score(word, ref);
 									double weight = Math.log10(model.vocab.getCount(word,3));
-									weight *= model.power.getOrDefault(word, 0.0);
+									weight *= model.power(word);
 									//if (word.equals("the"))
 										//System.out.println("the: " + weight + " " + model.power.getOrDefault(word, 0.0) + " " + Math.log10(model.vocab.getCount(word,3)));
 									pw.println("<span style=\"color:" + getHTMLColorString(score, weight) + "\" title=\"" + score + "\">" + word  + "</span> ");  // (" + weight + ") "
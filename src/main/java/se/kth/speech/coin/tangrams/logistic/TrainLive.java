@@ -0,0 +1,34 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import se.kth.speech.coin.tangrams.data.Session;
+import se.kth.speech.coin.tangrams.data.SessionSet;
+import se.kth.speech.coin.tangrams.data.SessionWatcher;
+
+/**
+ * Trains a model on the sessions in the data root (the first argument), and then keeps it updated with new sessions as they are recorded
+ */
+public class TrainLive {
+
+	public static void main(String[] args) throws Exception {
+		File root = new File(args.length > 0 ? args[0] : "d:/data/tangram");
+		SessionSet set = new SessionSet(root);
+		LogisticModel model = new LogisticModel();
+		model.train(set);
+		System.out.println("Trained on " + set.size() + " sessions");
+		try (SessionWatcher watcher = set.watch(root)) {
+			while (true) {
+				List<Session> sessions = watcher.poll(1, TimeUnit.MINUTES);
+				for (Session session : sessions) {
+					long t = System.currentTimeMillis();
+					model.addTrainingRounds(session.rounds);
+					System.out.println("Added " + session.name + " in " + (System.currentTimeMillis() - t) + " ms, vocabulary " + model.getVocabulary().size());
+				}
+			}
+		}
+	}
+
+}
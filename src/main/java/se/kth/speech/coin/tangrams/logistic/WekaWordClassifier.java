@@ -0,0 +1,47 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import se.kth.speech.coin.tangrams.data.FeatureStore;
+import se.kth.speech.coin.tangrams.data.Referent;
+import weka.classifiers.functions.Logistic;
+
+/**
+ * A word model trained with Weka's Logistic, which is the reference implementation
+ */
+public class WekaWordClassifier implements WordClassifier {
+
+	public final Logistic logistic;
+
+	// Converts referents to instances with the attributes the classifier was trained with
+	private final LogisticModel model;
+
+	WekaWordClassifier(Logistic logistic, LogisticModel model) {
+		this.logistic = logistic;
+		this.model = model;
+	}
+
+	// Logistic passes the instances through its filters, which are not thread-safe, and the classifier may be shared between cross-validation folds
+
+	@Override
+	public synchronized double score(FeatureStore features, int row) throws Exception {
+		return logistic.distributionForInstance(model.toInstance(features, row, 1))[0];
+	}
+
+	@Override
+	public synchronized double score(Referent ref) throws Exception {
+		return logistic.distributionForInstance(model.toInstance(ref))[0];
+	}
+
+	/**
+	 * Returns the log-odds of the referent, computed from both class probabilities to keep the precision when the score is close to 1
+	 */
+	synchronized double logit(Referent ref) throws Exception {
+		double[] dist = logistic.distributionForInstance(model.toInstance(ref));
+		return Math.log(dist[0]) - Math.log(dist[1]);
+	}
+
+	@Override
+	public double[][] coefficients() {
+		return logistic.coefficients();
+	}
+
+}
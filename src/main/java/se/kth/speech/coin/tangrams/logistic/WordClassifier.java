@@ -0,0 +1,26 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import se.kth.speech.coin.tangrams.data.FeatureStore;
+import se.kth.speech.coin.tangrams.data.Referent;
+
+/**
+ * A model of a word, which scores how likely a referent is to be the target when the word is used
+ */
+public interface WordClassifier {
+
+	/**
+	 * Returns the probability that the referent in a row of a feature store is the target
+	 */
+	double score(FeatureStore features, int row) throws Exception;
+
+	/**
+	 * Returns the probability that the referent is the target
+	 */
+	double score(Referent ref) throws Exception;
+
+	/**
+	 * Returns the coefficients, with the intercept first (in the format of Weka's Logistic)
+	 */
+	double[][] coefficients();
+
+}
@@ -0,0 +1,62 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import java.util.Arrays;
+
+import se.kth.speech.coin.tangrams.data.FeatureStore;
+
+/**
+ * The training instances of a word, as a view of a shared feature store: the indices of the rows, and a weight for each row.
+ * The rows may also index the concatenation of several feature stores (see split).
+ */
+public class WordInstances {
+
+	public int[] rows;
+	public double[] weights;
+	public int size = 0;
+	
+	// The instances come from the training rounds before this index
+	public int rounds = 0;
+
+	public WordInstances(int capacity) {
+		rows = new int[Math.max(capacity, 1)];
+		weights = new double[rows.length];
+	}
+
+	public void add(int row, double weight) {
+		if (size == rows.length) {
+			rows = Arrays.copyOf(rows, size * 2);
+			weights = Arrays.copyOf(weights, size * 2);
+		}
+		rows[size] = row;
+		weights[size] = weight;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * For rows which index the concatenation of several feature stores (as in PowerEstimator.estimate): returns the index of the store of each instance, 
+	 * and sets local to the row within that store
+	 */
+	public int[] split(FeatureStore[] parts, int[] local) {
+		int[] starts = new int[parts.length];
+		for (int p = 1; p < parts.length; p++) {
+			starts[p] = starts[p - 1] + parts[p - 1].size();
+		}
+		int[] part = new int[size];
+		for (int i = 0; i < size; i++) {
+			int p = Arrays.binarySearch(starts, rows[i]);
+			if (p < 0)
+				p = -p - 2;
+			// Skips empty stores, which start at the same row as the next one
+			while (p + 1 < starts.length && starts[p + 1] <= rows[i])
+				p++;
+			part[i] = p;
+			local[i] = rows[i] - starts[p];
+		}
+		return part;
+	}
+
+}
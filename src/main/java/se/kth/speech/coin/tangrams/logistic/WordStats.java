@@ -55,12 +55,18 @@ public class WordStats {
 		LogisticModel model = new LogisticModel();
 		model.train(set);
 		Vocabulary vocab = model.getVocabulary();
+		Session session = null;
 		for (Round round : new RoundSet(set).rounds) {
-			for (String word : round.getWords()) {
+			// The score cache is kept to one session at a time
+			if (round.session != session) {
+				model.clearScoreCache();
+				session = round.session;
+			}
+			for (int word : round.getWordIds()) {
 				if (vocab.has(word)) {
 					for (Referent ref : round.referents) {
 						double score = model.score(word, ref);
-						stats.add(round, word, score, ref.target);
+						stats.add(round, TokenDictionary.word(word), score, ref.target);
 					}
 				}
 			}
@@ -45,6 +45,7 @@ public class TestDialogWeights {
 		};
 		for (Session session : testingSet.sessions) {
 			System.out.println(session.name);
+			logisticModel.clearScoreCache();
 			TestDialog.writeDialog(new File(MakeFeatures.dataDir, session.name + "/rnn.html"), session, dialogPrinter);
 		}
 	}
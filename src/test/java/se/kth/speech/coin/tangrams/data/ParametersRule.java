@@ -0,0 +1,37 @@
+package se.kth.speech.coin.tangrams.data;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.rules.ExternalResource;
+
+/**
+ * Restores all the settings of Parameters after each test, so that a test can change any of them
+ */
+public class ParametersRule extends ExternalResource {
+
+	private final Map<Field,Object> values = new HashMap<>();
+
+	@Override
+	protected void before() throws IllegalAccessException {
+		for (Field field : Parameters.class.getFields()) {
+			int modifiers = field.getModifiers();
+			if (Modifier.isStatic(modifiers) && !Modifier.isFinal(modifiers))
+				values.put(field, field.get(null));
+		}
+	}
+
+	@Override
+	protected void after() {
+		for (Map.Entry<Field,Object> entry : values.entrySet()) {
+			try {
+				entry.getKey().set(null, entry.getValue());
+			} catch (IllegalAccessException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,76 @@
+package se.kth.speech.coin.tangrams.data;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RoundSetTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Rule
+	public ParametersRule parameters = new ParametersRule();
+
+	private RoundSet load(int sessions) throws IOException {
+		Random random = new Random(5);
+		List<Round> rounds = new ArrayList<>();
+		for (int s = 0; s < sessions; s++) {
+			File dir = new File(folder.getRoot(), "Game" + s);
+			TestData.writeSession(dir, random, 8);
+			rounds.addAll(new Session(dir).rounds);
+		}
+		return new RoundSet(rounds);
+	}
+
+	private static void assertIndexMatchesRounds(RoundSet set) {
+		for (int word = 0; word < TokenDictionary.size(); word++) {
+			// Bigrams are looked up separately
+			if (TokenDictionary.word(word).contains(" "))
+				continue;
+			List<Integer> expected = new ArrayList<>();
+			for (int r = 0; r < set.rounds.size(); r++) {
+				if (set.rounds.get(r).hasWord(word))
+					expected.add(r);
+			}
+			int[] rounds = new int[expected.size()];
+			for (int i = 0; i < rounds.length; i++) {
+				rounds[i] = expected.get(i);
+			}
+			assertArrayEquals(TokenDictionary.word(word) + " " + Parameters.ONLY_GIVER + " " + Parameters.ONLY_REFLANG, rounds, set.getRoundIndices(word));
+		}
+	}
+
+	@Test
+	public void indexFollowsSettings() throws IOException {
+		RoundSet set = load(3);
+		for (int variant = 0; variant < 8; variant++) {
+			Parameters.ONLY_GIVER = (variant & 2) != 0;
+			Parameters.ONLY_REFLANG = (variant & 1) != 0;
+			assertIndexMatchesRounds(set);
+		}
+	}
+
+	@Test
+	public void appendedRoundsAreIndexed() throws IOException {
+		RoundSet set = load(3);
+		List<Round> all = new ArrayList<>(set.rounds);
+		set.rounds.subList(10, set.rounds.size()).clear();
+		assertIndexMatchesRounds(set);
+		Parameters.ONLY_REFLANG = true;
+		assertIndexMatchesRounds(set);
+		set.rounds.addAll(all.subList(10, all.size()));
+		assertIndexMatchesRounds(set);
+		Parameters.ONLY_REFLANG = false;
+		assertIndexMatchesRounds(set);
+	}
+
+}
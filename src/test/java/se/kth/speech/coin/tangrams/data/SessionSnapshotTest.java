@@ -0,0 +1,129 @@
+package se.kth.speech.coin.tangrams.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SessionSnapshotTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private List<File> dirs = new ArrayList<>();
+	private List<Session> sessions;
+
+	@Before
+	public void writeSessions() throws IOException {
+		Random random = new Random(3);
+		for (int s = 0; s < 3; s++) {
+			File dir = new File(folder.getRoot(), "Game" + s);
+			TestData.writeSession(dir, random, 6 + s);
+			dirs.add(dir);
+		}
+		sessions = new ArrayList<>();
+		for (File dir : dirs) {
+			sessions.add(new Session(dir));
+		}
+	}
+
+	private File writeSnapshot() throws IOException {
+		File file = new File(folder.getRoot(), "sessions.snapshot");
+		SessionSnapshot.write(file, SessionSnapshot.digest(dirs), sessions);
+		return file;
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		File file = writeSnapshot();
+		List<Session> read = SessionSnapshot.read(file, SessionSnapshot.digest(dirs));
+		assertNotNull(read);
+		assertEquals(sessions.size(), read.size());
+		for (int s = 0; s < sessions.size(); s++) {
+			assertSameSession(sessions.get(s), read.get(s));
+		}
+	}
+
+	@Test
+	public void changedFilesAreStale() throws IOException {
+		File file = writeSnapshot();
+		File events = new File(dirs.get(1), "events.tsv");
+		events.setLastModified(events.lastModified() - 10000);
+		assertNull(SessionSnapshot.read(file, SessionSnapshot.digest(dirs)));
+	}
+
+	@Test
+	public void truncatedSnapshotIsIgnored() throws IOException {
+		File file = writeSnapshot();
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		byte[] digest = SessionSnapshot.digest(dirs);
+		for (int length = 0; length < bytes.length; length += 1 + length / 8) {
+			Files.write(file.toPath(), Arrays.copyOf(bytes, length));
+			assertNull("Truncated to " + length, SessionSnapshot.read(file, digest));
+		}
+	}
+
+	@Test
+	public void corruptSnapshotIsIgnoredOrRead() throws IOException {
+		File file = writeSnapshot();
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		byte[] digest = SessionSnapshot.digest(dirs);
+		// The header (magic, version and digest) is checked separately
+		int header = 9 + digest.length;
+		Random random = new Random(4);
+		int[] values = {-1, Integer.MIN_VALUE, Integer.MAX_VALUE, 1 << 28, 0};
+		for (int i = 0; i < 500; i++) {
+			byte[] corrupt = bytes.clone();
+			int offset = header + random.nextInt(corrupt.length - header - 4);
+			int value = i % 2 == 0 ? values[random.nextInt(values.length)] : random.nextInt();
+			ByteBuffer.wrap(corrupt).putInt(offset, value);
+			Files.write(file.toPath(), corrupt);
+			// A corrupt snapshot must either be rejected or decode to some sessions, never throw
+			SessionSnapshot.read(file, digest);
+		}
+	}
+
+	private static void assertSameSession(Session expected, Session actual) {
+		assertEquals(expected.name, actual.name);
+		assertEquals(expected.rounds.size(), actual.rounds.size());
+		for (int r = 0; r < expected.rounds.size(); r++) {
+			Round e = expected.rounds.get(r);
+			Round a = actual.rounds.get(r);
+			assertEquals(e.n, a.n);
+			assertEquals(e.utts.size(), a.utts.size());
+			for (int u = 0; u < e.utts.size(); u++) {
+				assertEquals(e.utts.get(u).speaker, a.utts.get(u).speaker);
+				assertEquals(e.utts.get(u).isGiver, a.utts.get(u).isGiver);
+				assertArrayEquals(e.utts.get(u).fullText, a.utts.get(u).fullText);
+				assertArrayEquals(e.utts.get(u).refText, a.utts.get(u).refText);
+			}
+			assertEquals(e.referents.size(), a.referents.size());
+			for (int i = 0; i < e.referents.size(); i++) {
+				Referent er = e.referents.get(i);
+				Referent ar = a.referents.get(i);
+				assertEquals(er.id, ar.id);
+				assertEquals(er.target, ar.target);
+				assertEquals(er.shape, ar.shape);
+				float[] ef = {er.size, er.red, er.green, er.blue, er.hue, er.posx, er.posy, er.midx, er.midy, er.mentioned};
+				float[] af = {ar.size, ar.red, ar.green, ar.blue, ar.hue, ar.posx, ar.posy, ar.midx, ar.midy, ar.mentioned};
+				assertArrayEquals(ef, af, 0f);
+			}
+			assertEquals(e.referents.indexOf(e.target), a.referents.indexOf(a.target));
+		}
+	}
+
+}
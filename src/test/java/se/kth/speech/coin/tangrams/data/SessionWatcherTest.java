@@ -0,0 +1,109 @@
+package se.kth.speech.coin.tangrams.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SessionWatcherTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Rule
+	public ParametersRule parameters = new ParametersRule();
+
+	private final Random random = new Random(6);
+	private SessionSet set;
+	private SessionWatcher watcher;
+
+	@Before
+	public void watch() throws IOException {
+		Parameters.SESSION_SETTLE_SECONDS = 0;
+		TestData.writeSession(new File(folder.getRoot(), "Game0"), random, 6);
+		set = new SessionSet(folder.getRoot());
+		watcher = set.watch(folder.getRoot());
+	}
+
+	@After
+	public void close() throws IOException {
+		watcher.close();
+	}
+
+	private List<Session> poll() throws IOException, InterruptedException {
+		return watcher.poll(100, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Polls until some sessions are added (the events of a new directory may arrive over several polls)
+	 */
+	private List<Session> pollUntilAdded() throws IOException, InterruptedException {
+		for (int i = 0; i < 10; i++) {
+			List<Session> sessions = poll();
+			if (!sessions.isEmpty())
+				return sessions;
+		}
+		return Collections.emptyList();
+	}
+
+	@Test
+	public void sessionIsAddedOnceStable() throws Exception {
+		assertTrue(poll().isEmpty());
+		TestData.writeSession(new File(folder.getRoot(), "Game1"), random, 6);
+		List<Session> sessions = pollUntilAdded();
+		assertEquals(1, sessions.size());
+		assertEquals("Game1", sessions.get(0).name);
+		assertEquals(2, set.sessions.size());
+		assertTrue(poll().isEmpty());
+		assertEquals(0, watcher.getPendingCount());
+	}
+
+	@Test
+	public void sessionIsNotAddedWhileWritten() throws Exception {
+		File dir = new File(folder.getRoot(), "Game1");
+		// The first part of a session parses, but must not be added while more is written
+		TestData.writeSession(dir, random, 5);
+		assertTrue(poll().isEmpty());
+		TestData.writeSession(dir, random, 9);
+		assertTrue(poll().isEmpty());
+		List<Session> sessions = pollUntilAdded();
+		assertEquals(1, sessions.size());
+		assertEquals(new Session(dir).rounds.size(), sessions.get(0).rounds.size());
+	}
+
+	@Test
+	public void sessionWaitsForSettleTime() throws Exception {
+		Parameters.SESSION_SETTLE_SECONDS = 3600;
+		TestData.writeSession(new File(folder.getRoot(), "Game1"), random, 6);
+		assertTrue(pollUntilAdded().isEmpty());
+		assertEquals(1, watcher.getPendingCount());
+	}
+
+	@Test
+	public void hiddenAndBrokenDirectoriesAreNotWatched() throws Exception {
+		TestData.writeSession(new File(folder.getRoot(), ".cache"), random, 6);
+		File broken = new File(folder.getRoot(), "Broken");
+		broken.mkdir();
+		for (String name : new String[] {"events.tsv", "extracted-referring-tokens.tsv"}) {
+			try (PrintWriter out = new PrintWriter(new File(broken, name), "UTF-8")) {
+				out.println("not a session");
+			}
+		}
+		assertTrue(pollUntilAdded().isEmpty());
+		assertEquals(0, watcher.getPendingCount());
+		assertEquals(1, set.sessions.size());
+	}
+
+}
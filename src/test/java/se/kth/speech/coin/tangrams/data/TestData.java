@@ -0,0 +1,134 @@
+package se.kth.speech.coin.tangrams.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Random sessions and rounds for tests. The target of a random round is drawn with a probability that depends on the shape and features of the referents,
+ * so that word models trained on the rounds have something to fit.
+ */
+public class TestData {
+
+	public static final List<String> SHAPES = Arrays.asList("arrow", "bread", "crown", "heart", "wedge");
+
+	private static final String[] WORDS = "the red blue small big one on left right it's can't yeah okay no um- uh".split(" ");
+
+	/**
+	 * Writes the files of a random session with the given number of rounds (at least 5) to a directory
+	 */
+	public static void writeSession(File dir, Random random, int rounds) throws IOException {
+		dir.mkdirs();
+		try (PrintWriter out = new PrintWriter(new File(dir, "extracted-referring-tokens.tsv"), "UTF-8")) {
+			out.println("ROUND\tSPEAKER\tSTART\tEND\tTOKENS\tREFTOKENS");
+			for (int r = 1; r <= rounds; r++) {
+				for (int u = random.nextInt(3); u >= 0; u--) {
+					out.println(r + "\t" + (random.nextBoolean() ? "A" : "B") + "\t0\t1\t" + randomText(random, 8) + "\t" + randomText(random, 3));
+				}
+			}
+		}
+		try (PrintWriter out = new PrintWriter(new File(dir, "events.tsv"), "UTF-8")) {
+			StringBuilder header = new StringBuilder("C0");
+			for (int c = 1; c < 22; c++) {
+				header.append("\tC").append(c);
+			}
+			out.println(header);
+			for (int r = 0; r <= rounds + 1; r++) {
+				out.println("x\t" + r + "\tt\ts\tother.event\t1\t2\t3");
+				int target = random.nextInt(20);
+				for (int i = 0; i < 20; i++) {
+					out.println(String.format(Locale.ROOT, "0\t%d\tt\ts\tnextturn.request\tx\t%d\t%b\ty\t%s\tz\t%.4f\t%d\t%d\t%d\tq\t%.3f\ta\tb\t%.3f\t%.3f\tend",
+							r, i, i == target, SHAPES.get(random.nextInt(SHAPES.size())), random.nextFloat(), random.nextInt(256), random.nextInt(256),
+							random.nextInt(256), random.nextFloat(), random.nextFloat(), random.nextFloat()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a hand-made session, where round r has one utterance with texts[r] and 20 referents with the same features, ten hearts and ten wedges.
+	 * The target of round r is one of the referents with the shape targets[r]. A word model can then only learn how often the target has each shape,
+	 * so with a small ridge it scores a referent with the weighted fraction of targets among the referents with its shape (see score).
+	 */
+	public static void writeSession(File dir, String[] texts, String[] targets) throws IOException {
+		dir.mkdirs();
+		try (PrintWriter out = new PrintWriter(new File(dir, "extracted-referring-tokens.tsv"), "UTF-8")) {
+			out.println("ROUND\tSPEAKER\tSTART\tEND\tTOKENS\tREFTOKENS");
+			for (int r = 0; r < texts.length; r++) {
+				out.println((r + 1) + "\tA\t0\t1\t" + texts[r] + "\t" + texts[r]);
+			}
+		}
+		try (PrintWriter out = new PrintWriter(new File(dir, "events.tsv"), "UTF-8")) {
+			out.println("C0\tC1\tC2\tC3\tC4");
+			for (int r = 0; r < texts.length; r++) {
+				for (int i = 0; i < 20; i++) {
+					String shape = i < 10 ? "heart" : "wedge";
+					// Unique ids, so that no referent has been mentioned before
+					out.println(String.format(Locale.ROOT, "0\t%d\tt\ts\tnextturn.request\tx\t%d\t%b\ty\t%s\tz\t0.5\t128\t128\t128\tq\t0.5\ta\tb\t0.5\t0.5\tend",
+							r + 1, r * 20 + i, i % 10 == 0 && shape.equals(targets[r]), shape));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the score of a word model for a referent of a hand-made session (see writeSession), where the word occurs in the given number of rounds, 
+	 * and the target had the shape of the referent in the given number of them. Targets are trained with weight 19, the other referents with weight 1.
+	 */
+	public static double score(int targets, int rounds) {
+		return 19.0 * targets / (19.0 * targets + 10 * rounds - targets);
+	}
+
+	private static String randomText(Random random, int maxLength) {
+		StringBuilder text = new StringBuilder(WORDS[random.nextInt(WORDS.length)]);
+		for (int i = random.nextInt(maxLength); i > 0; i--) {
+			text.append(' ').append(WORDS[random.nextInt(WORDS.length)]);
+		}
+		return text.toString();
+	}
+
+	/**
+	 * Returns a round with random referents and no utterances
+	 */
+	public static Round randomRound(Random random, int referents) {
+		Round round = new Round();
+		double[] odds = new double[referents];
+		double total = 0;
+		for (int i = 0; i < referents; i++) {
+			Referent ref = new Referent();
+			ref.id = i;
+			ref.shape = SHAPES.get(random.nextInt(SHAPES.size()));
+			ref.size = random.nextFloat();
+			ref.red = random.nextFloat();
+			ref.green = random.nextFloat();
+			ref.blue = random.nextFloat();
+			ref.setPos(random.nextFloat(), random.nextFloat());
+			round.referents.add(ref);
+			odds[i] = Math.exp(2 * ref.red - ref.size + (ref.shape.equals("heart") ? 1 : 0));
+			total += odds[i];
+		}
+		double pick = random.nextDouble() * total;
+		int target = 0;
+		while (target < referents - 1 && (pick -= odds[target]) > 0)
+			target++;
+		round.target = round.referents.get(target);
+		round.target.target = true;
+		return round;
+	}
+
+	/**
+	 * Returns a feature store with the referents of random rounds
+	 */
+	public static FeatureStore randomFeatures(Random random, int rounds, int referents) {
+		FeatureStore features = new FeatureStore(SHAPES, rounds * referents);
+		for (int r = 0; r < rounds; r++) {
+			features.add(randomRound(random, referents));
+		}
+		return features;
+	}
+
+}
@@ -0,0 +1,55 @@
+package se.kth.speech.coin.tangrams.data;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TextNormalizerTest {
+
+	private static final String[] PIECES = {"it's", "we've", "you're", "i'd", "they'll", "can't", "won't", "don't've", "i'm", "'kay", "mm-kay",
+			"mm-hmm", "um-", "uh", "-ish", "n't", "'s", "'", "-", "s", "t", "ve", "n", "i", "m", "kay", "_", "1", "å", "\u0301", "\ud801\udc00", " ", "  "};
+
+	/**
+	 * The replacements as they were applied before TextNormalizer, one after another
+	 */
+	private static String replaceAll(String text) {
+		text = text.replaceAll("'s\\b", " is");
+		text = text.replaceAll("'ve\\b", " have");
+		text = text.replaceAll("'re\\b", " are");
+		text = text.replaceAll("'d\\b", " would");
+		text = text.replaceAll("'ll\\b", " will");
+		text = text.replaceAll("can't", "can not");
+		text = text.replaceAll("n't\\b", " not");
+		text = text.replaceAll("i'm", "i am");
+		text = text.replaceAll("'kay", "okay");
+		return text;
+	}
+
+	@Test
+	public void expandsContractions() {
+		assertEquals("it is the one on the left", TextNormalizer.normalize("it's the one on the left"));
+		assertEquals("i am sure you can not miss it", TextNormalizer.normalize("i'm sure you can't miss it"));
+		assertEquals("we do not have it", TextNormalizer.normalize("we don't have it"));
+		assertEquals("okay it is mm-hmm the um- big one", TextNormalizer.normalize("'kay it's mm-hmm the um- big one"));
+		// Only followed by a word boundary
+		assertEquals("it'sa it's_ it is-ish", TextNormalizer.normalize("it'sa it's_ it's-ish"));
+		// No contractions: the same string is returned
+		String text = "the red one -ish";
+		assertEquals(text, TextNormalizer.normalize(text));
+	}
+
+	@Test
+	public void matchesReplaceAll() {
+		Random random = new Random(5);
+		for (int i = 0; i < 100000; i++) {
+			StringBuilder text = new StringBuilder();
+			for (int p = random.nextInt(8); p >= 0; p--) {
+				text.append(PIECES[random.nextInt(PIECES.length)]);
+			}
+			assertEquals(text.toString(), replaceAll(text.toString()), TextNormalizer.normalize(text.toString()));
+		}
+	}
+
+}
@@ -0,0 +1,114 @@
+package se.kth.speech.coin.tangrams.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TsvReaderTest {
+
+	private static final String[] VALUES = {"", " ", "0", "-17", "+4", "12345678901", "true", "False", "nextturn.request", "0.25", "åäö", "um- uh"};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Returns a random line with empty columns, padding, and values of different lengths, some of them far longer than the buffer
+	 */
+	private static String randomLine(Random random) {
+		StringBuilder line = new StringBuilder();
+		if (random.nextInt(4) == 0)
+			line.append(random.nextBoolean() ? "  " : "\t");
+		int cols = random.nextInt(10);
+		for (int c = 0; c < cols; c++) {
+			if (c > 0)
+				line.append('\t');
+			int r = random.nextInt(1000);
+			if (r == 0) {
+				for (int i = 100000 + random.nextInt(50000); i > 0; i--) {
+					line.append((char) ('a' + random.nextInt(26)));
+				}
+			} else if (r < 100) {
+				line.append(random.nextInt());
+			} else {
+				line.append(VALUES[random.nextInt(VALUES.length)]);
+			}
+		}
+		if (random.nextInt(4) == 0)
+			line.append(random.nextBoolean() ? " \t" : "\t\t");
+		return line.toString();
+	}
+
+	/**
+	 * Reads a file with the reader, and checks each row against the trimmed and split lines, as the sessions were read before
+	 */
+	private static void assertSameRows(File file, List<String> lines) throws IOException {
+		try (TsvReader reader = new TsvReader(file)) {
+			for (String line : lines) {
+				line = line.trim();
+				if (line.isEmpty())
+					continue;
+				assertTrue(reader.next());
+				assertEquals(line, reader.getRow());
+				String[] cols = line.split("\t");
+				for (int c = 0; c < cols.length; c++) {
+					assertEquals(cols[c], reader.getString(c));
+					// columnEquals only compares ASCII values
+					if (cols[c].chars().allMatch(ch -> ch < 128))
+						assertTrue(reader.columnEquals(c, cols[c]));
+					assertEquals(cols[c].equalsIgnoreCase("true"), reader.getBoolean(c));
+					Integer value;
+					try {
+						value = Integer.parseInt(cols[c]);
+					} catch (NumberFormatException e) {
+						value = null;
+					}
+					if (value != null)
+						assertEquals(value.intValue(), reader.getInt(c));
+				}
+			}
+			assertFalse(reader.next());
+		}
+	}
+
+	@Test
+	public void readsSplitLines() throws IOException {
+		Random random = new Random(3);
+		for (String newline : new String[] {"\n", "\r\n"}) {
+			List<String> lines = new ArrayList<>();
+			// Enough lines to cross several buffer boundaries, with empty and blank lines in between
+			for (int i = 0; i < 5000; i++) {
+				lines.add(random.nextInt(20) == 0 ? "" : random.nextInt(20) == 0 ? " \t " : randomLine(random));
+			}
+			File file = folder.newFile();
+			Files.write(file.toPath(), (String.join(newline, lines) + (random.nextBoolean() ? newline : "")).getBytes(StandardCharsets.UTF_8));
+			assertSameRows(file, lines);
+		}
+	}
+
+	@Test
+	public void readsSmallFiles() throws IOException {
+		String[][] files = {{}, {""}, {"a"}, {"a\t\tb", "", "\t1\t"}, {"  x\ty  ", "z"}};
+		for (String[] lines : files) {
+			File file = folder.newFile();
+			Files.write(file.toPath(), String.join("\r\n", lines).getBytes(StandardCharsets.UTF_8));
+			List<String> list = new ArrayList<>();
+			for (String line : lines) {
+				list.add(line);
+			}
+			assertSameRows(file, list);
+		}
+	}
+
+}
@@ -0,0 +1,221 @@
+package se.kth.speech.coin.tangrams.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class VocabularyTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static int word(int i) {
+		return TokenDictionary.id("vocabularytest" + i);
+	}
+
+	private static void assertSameCounts(Map<Integer,Integer> expected, Vocabulary vocab) {
+		assertEquals(expected.size(), vocab.size());
+		int[] ids = vocab.getWordIds();
+		Arrays.sort(ids);
+		int[] expectedIds = expected.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+		assertArrayEquals(expectedIds, ids);
+		for (Map.Entry<Integer,Integer> entry : expected.entrySet()) {
+			assertEquals((int) entry.getValue(), vocab.getCount(entry.getKey(), -1));
+			assertTrue(vocab.has(entry.getKey()));
+		}
+		assertEquals(expected.size(), vocab.getWordsSortedByFreq().size());
+	}
+
+	@Test
+	public void overlayAddsToBackground() {
+		Random random = new Random(9);
+		Vocabulary background = new Vocabulary();
+		Map<Integer,Integer> expected = new HashMap<>();
+		for (int i = 0; i < 2000; i++) {
+			int word = word(random.nextInt(500));
+			background.add(word);
+			expected.merge(word, 1, Integer::sum);
+		}
+		Map<Integer,Integer> backgroundCounts = new HashMap<>(expected);
+		Vocabulary overlay = background.overlay();
+		assertSameCounts(expected, overlay);
+		for (int i = 0; i < 300; i++) {
+			int word = word(random.nextInt(600));
+			overlay.add(word);
+			expected.merge(word, 1, Integer::sum);
+		}
+		assertSameCounts(expected, overlay);
+		assertSameCounts(backgroundCounts, background);
+		assertSameCounts(expected, new Vocabulary(overlay));
+		// An overlay of an overlay
+		Vocabulary second = overlay.overlay();
+		second.setCount(word(700), 3);
+		expected.put(word(700), 3);
+		assertSameCounts(expected, second);
+		assertFalse(overlay.has(word(700)));
+	}
+
+	@Test
+	public void overlayUpdatesLikeCopy() {
+		Random random = new Random(10);
+		Vocabulary counts = new Vocabulary();
+		for (int i = 0; i < 1000; i++) {
+			counts.add(word(random.nextInt(300)));
+		}
+		Vocabulary vocab = new Vocabulary(counts);
+		vocab.prune(3);
+		Vocabulary copyCounts = new Vocabulary(counts);
+		Vocabulary copyVocab = new Vocabulary(vocab);
+		Vocabulary overlayCounts = counts.overlay();
+		Vocabulary overlayVocab = vocab.overlay();
+		for (int step = 0; step < 20; step++) {
+			int[] words = new int[5];
+			for (int j = 0; j < words.length; j++) {
+				words[j] = word(random.nextInt(350));
+			}
+			copyCounts.addAll(words);
+			overlayCounts.addAll(words);
+			int[] copyUpdated = copyVocab.update(copyCounts, words, 3, 20);
+			int[] overlayUpdated = overlayVocab.update(overlayCounts, words, 3, 20);
+			assertArrayEquals(copyUpdated, overlayUpdated);
+		}
+		Map<Integer,Integer> expected = new HashMap<>();
+		for (int word : copyVocab.getWordIds()) {
+			expected.put(word, copyVocab.getCount(word, 0));
+		}
+		assertSameCounts(expected, overlayVocab);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void overlayCannotRemove() {
+		Vocabulary background = new Vocabulary();
+		background.add(word(0));
+		background.overlay().removeAll(new int[] {word(0)});
+	}
+
+	/**
+	 * Removes the words of the reference counts which prune(n) removes
+	 */
+	private static void prune(Map<Integer,Integer> counts, int n) {
+		counts.entrySet().removeIf(e -> e.getValue() < n || TokenDictionary.word(e.getKey()).endsWith("-"));
+	}
+
+	@Test
+	public void addAndRemoveMatchMap() throws Exception {
+		Random random = new Random(5);
+		Vocabulary vocab = new Vocabulary();
+		Map<Integer,Integer> expected = new HashMap<>();
+		// Enough words for the table to grow several times, and enough removals to shift entries back over emptied slots
+		for (int step = 0; step < 40; step++) {
+			int[] words = new int[200];
+			for (int j = 0; j < words.length; j++) {
+				words[j] = word(random.nextInt(2000));
+			}
+			if (step % 3 == 2) {
+				vocab.removeAll(words);
+				for (int word : words) {
+					expected.computeIfPresent(word, (w, c) -> c > 1 ? c - 1 : null);
+				}
+			} else {
+				vocab.addAll(words);
+				for (int word : words) {
+					expected.merge(word, 1, Integer::sum);
+				}
+			}
+			int word = word(random.nextInt(2000));
+			vocab.setCount(word, 7);
+			expected.put(word, 7);
+			assertSameCounts(expected, vocab);
+		}
+		for (int i = 0; i < 2000; i++) {
+			if (!expected.containsKey(word(i))) {
+				assertFalse(vocab.has(word(i)));
+				assertEquals(-1, vocab.getCount(word(i), -1));
+			}
+		}
+		assertSameCounts(expected, new Vocabulary(vocab));
+		File file = folder.newFile("vocab.txt");
+		vocab.save(file);
+		assertSameCounts(expected, new Vocabulary(file));
+	}
+
+	@Test
+	public void pruneMatchesMap() {
+		Random random = new Random(6);
+		Vocabulary vocab = new Vocabulary();
+		Map<Integer,Integer> expected = new HashMap<>();
+		for (int i = 0; i < 5000; i++) {
+			int n = random.nextInt(800);
+			// Some partial words, which are always pruned
+			int word = n % 10 == 0 ? TokenDictionary.id("vocabularytest" + n + "-") : word(n);
+			vocab.add(word);
+			expected.merge(word, 1, Integer::sum);
+		}
+		vocab.prune(6);
+		prune(expected, 6);
+		assertSameCounts(expected, vocab);
+		vocab.prune(9);
+		prune(expected, 9);
+		assertSameCounts(expected, vocab);
+		// The sorted words are by descending count
+		int last = Integer.MAX_VALUE;
+		for (String word : vocab.getWordsSortedByFreq()) {
+			assertTrue(vocab.getCount(word) <= last);
+			last = vocab.getCount(word);
+		}
+	}
+
+	@Test
+	public void updateMatchesPrunedCounts() {
+		Random random = new Random(7);
+		Vocabulary counts = new Vocabulary();
+		for (int i = 0; i < 1000; i++) {
+			counts.add(word(random.nextInt(300)));
+		}
+		Vocabulary vocab = new Vocabulary(counts);
+		vocab.prune(4);
+		for (int step = 0; step < 30; step++) {
+			int[] words = new int[8];
+			for (int j = 0; j < words.length; j++) {
+				words[j] = word(random.nextInt(400));
+			}
+			Map<Integer,Integer> before = new HashMap<>();
+			for (int word : vocab.getWordIds()) {
+				before.put(word, vocab.getCount(word, 0));
+			}
+			counts.addAll(words);
+			Set<Integer> updated = new HashSet<>();
+			for (int word : vocab.update(counts, words, 4, 15)) {
+				updated.add(word);
+			}
+
+			Map<Integer,Integer> expected = new HashMap<>();
+			for (int word : counts.getWordIds()) {
+				expected.put(word, counts.getCount(word, 0));
+			}
+			prune(expected, 4);
+			assertSameCounts(expected, vocab);
+			Set<Integer> expectedUpdated = new HashSet<>();
+			for (int word : expected.keySet()) {
+				Integer old = before.get(word);
+				if (old == null || (old != (int) expected.get(word) && old <= 15))
+					expectedUpdated.add(word);
+			}
+			assertEquals(expectedUpdated, updated);
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import se.kth.speech.coin.tangrams.data.FeatureStore;
+import se.kth.speech.coin.tangrams.data.Parameters;
+import se.kth.speech.coin.tangrams.data.ParametersRule;
+import se.kth.speech.coin.tangrams.data.Referent;
+import se.kth.speech.coin.tangrams.data.Round;
+import se.kth.speech.coin.tangrams.data.Session;
+import se.kth.speech.coin.tangrams.data.SessionSet;
+import se.kth.speech.coin.tangrams.data.TestData;
+
+public class CompiledScorerTest {
+
+	// Weka models are compiled by probing their log-odds, so the compiled scores only match up to rounding (within about 1e-16 here)
+	private static final double WEKA_TOLERANCE = 1e-12;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Rule
+	public ParametersRule parameters = new ParametersRule();
+
+	private SessionSet set;
+	private List<Referent> referents = new ArrayList<>();
+
+	@Before
+	public void writeSessions() throws IOException {
+		Random random = new Random(11);
+		for (int s = 0; s < 3; s++) {
+			TestData.writeSession(new File(folder.getRoot(), "Game" + s), random, 8);
+		}
+		set = new SessionSet(folder.getRoot());
+		for (Session session : set.sessions) {
+			for (Round round : session.rounds) {
+				referents.addAll(round.referents);
+			}
+		}
+		// Referents with a shape that the models were not trained with
+		for (int i = 0; i < 20; i++) {
+			Referent ref = new Referent();
+			ref.shape = "unknown";
+			ref.size = random.nextFloat();
+			ref.red = random.nextFloat();
+			ref.setPos(random.nextFloat(), random.nextFloat());
+			referents.add(ref);
+		}
+	}
+
+	/**
+	 * Checks that a model gives the same scores with and without the compiled table, both for referents and for feature store rows
+	 */
+	private void assertSameScores(boolean nativeLogistic, double tolerance) throws Exception {
+		Parameters.NATIVE_LOGISTIC = nativeLogistic;
+		Parameters.COMPILED_SCORING = false;
+		LogisticModel model = new LogisticModel();
+		model.train(set);
+		FeatureStore features = new FeatureStore(model.getCompiledScorer().getShapes(), referents.size());
+		Round round = new Round(set.sessions.get(0).rounds.get(0));
+		round.referents = referents;
+		features.add(round);
+		for (int word : model.getVocabulary().getWordIds()) {
+			for (int row = 0; row < referents.size(); row++) {
+				Parameters.COMPILED_SCORING = false;
+				double referentScore = model.score(word, referents.get(row));
+				double rowScore = model.score(word, features, row);
+				Parameters.COMPILED_SCORING = true;
+				assertEquals(referentScore, model.score(word, referents.get(row)), tolerance);
+				assertEquals(rowScore, model.score(word, features, row), tolerance);
+			}
+		}
+	}
+
+	@Test
+	public void nativeModelsGiveTheSameScores() throws Exception {
+		assertSameScores(true, 0);
+	}
+
+	@Test
+	public void wekaModelsGiveTheSameScoresUpToRounding() throws Exception {
+		assertSameScores(false, WEKA_TOLERANCE);
+	}
+
+}
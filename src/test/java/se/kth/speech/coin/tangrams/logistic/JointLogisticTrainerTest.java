@@ -0,0 +1,48 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+import se.kth.speech.coin.tangrams.data.FeatureStore;
+import se.kth.speech.coin.tangrams.data.TestData;
+
+public class JointLogisticTrainerTest {
+
+	/**
+	 * Returns the instances of the rounds (of 10 referents) from one round to another, every step rounds
+	 */
+	private static WordInstances rounds(FeatureStore features, int from, int to, int step) {
+		WordInstances instances = new WordInstances(0);
+		for (int round = from; round < to; round += step) {
+			for (int row = round * 10; row < round * 10 + 10; row++) {
+				instances.add(row, features.isTarget(row) ? 9 : 1);
+			}
+		}
+		return instances;
+	}
+
+	@Test
+	public void jointFitMatchesSingleFits() {
+		// 10000 rows, so that the instances span several blocks and some words are missing from some blocks
+		FeatureStore features = TestData.randomFeatures(new Random(3), 1000, 10);
+		assertTrue(JointLogisticTrainer.fits(features));
+		WordInstances[] instances = {
+				rounds(features, 0, 1000, 1),
+				rounds(features, 0, 300, 1),
+				rounds(features, 500, 1000, 7),
+				rounds(features, 900, 905, 1)};
+		RidgeWordClassifier[] joint = new JointLogisticTrainer(features).train(instances, 100);
+		for (int i = 0; i < instances.length; i++) {
+			RidgeWordClassifier single = RidgeWordClassifier.train(features, instances[i], 100, null);
+			for (int row = 0; row < features.size(); row += 13) {
+				// ND4J computes in single precision
+				assertEquals("word " + i + " row " + row, single.score(features, row), joint[i].score(features, row), 1e-4);
+			}
+		}
+	}
+
+}
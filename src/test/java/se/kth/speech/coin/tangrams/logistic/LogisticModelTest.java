@@ -0,0 +1,216 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import se.kth.speech.coin.tangrams.data.Parameters;
+import se.kth.speech.coin.tangrams.data.ParametersRule;
+import se.kth.speech.coin.tangrams.data.Referent;
+import se.kth.speech.coin.tangrams.data.Round;
+import se.kth.speech.coin.tangrams.data.Session;
+import se.kth.speech.coin.tangrams.data.SessionSet;
+import se.kth.speech.coin.tangrams.data.TestData;
+import se.kth.speech.coin.tangrams.data.TokenDictionary;
+
+public class LogisticModelTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Rule
+	public ParametersRule parameters = new ParametersRule();
+
+	private SessionSet background;
+	private Session added;
+
+	@Before
+	public void writeSessions() throws IOException {
+		Parameters.NATIVE_LOGISTIC = true;
+		Parameters.USE_MODEL_CACHE = false;
+		Random random = new Random(11);
+		File root = new File(folder.getRoot(), "background");
+		for (int s = 0; s < 3; s++) {
+			TestData.writeSession(new File(root, "Game" + s), random, 10);
+		}
+		background = new SessionSet(root);
+		File dir = new File(folder.getRoot(), "added");
+		TestData.writeSession(dir, random, 10);
+		added = new Session(dir);
+	}
+
+	private static void assertSameScores(RidgeWordClassifier expected, RidgeWordClassifier actual, double delta) {
+		Random random = new Random(12);
+		for (int i = 0; i < 20; i++) {
+			Referent ref = TestData.randomRound(random, 1).referents.get(0);
+			assertEquals(expected.score(ref), actual.score(ref), delta);
+		}
+	}
+
+	@Test
+	public void overlayMatchesRetrainedModel() throws Exception {
+		LogisticModel model = new LogisticModel();
+		model.train(background);
+		ModelSnapshot before = model.snapshot();
+
+		LogisticModel overlay = model.overlay();
+		overlay.addTrainingRounds(added.rounds);
+		Map<Integer,RidgeWordClassifier> retrained = overlay.snapshot().models;
+		assertFalse(retrained.isEmpty());
+
+		// The background is not changed
+		ModelSnapshot after = model.snapshot();
+		assertEquals(before.models.keySet(), after.models.keySet());
+		for (int word : before.models.keySet()) {
+			assertSameScores(before.models.get(word), after.models.get(word), 0);
+		}
+
+		// The retrained words are trained on the background's rows followed by the appended ones, as a model trained on all sessions
+		SessionSet all = new SessionSet(background);
+		all.sessions.add(added);
+		LogisticModel full = new LogisticModel();
+		full.train(all);
+		Map<Integer,RidgeWordClassifier> models = full.snapshot().models;
+		for (Map.Entry<Integer,RidgeWordClassifier> entry : retrained.entrySet()) {
+			assertSameScores(models.get(entry.getKey()), entry.getValue(), 1e-6);
+			assertEquals(full.getVocabulary().getCount(entry.getKey(), 0), overlay.getVocabulary().getCount(entry.getKey(), 0));
+		}
+		assertEquals(full.getVocabulary().size(), overlay.getVocabulary().size());
+	}
+
+	/**
+	 * Returns the scores of every word in the vocabulary for the referents of the added session, keyed by word and referent
+	 */
+	private Map<String,Double> scores(LogisticModel model) throws Exception {
+		Map<String,Double> scores = new HashMap<>();
+		for (int word : model.getVocabulary().getWordIds()) {
+			for (Round round : added.rounds) {
+				for (Referent ref : round.referents) {
+					scores.put(word + " " + round.n + " " + ref.id, model.score(word, ref));
+				}
+			}
+		}
+		return scores;
+	}
+
+	@Test
+	public void storingAnOverlayCollapsesIt() throws Exception {
+		List<Round> first = added.rounds.subList(0, 5);
+		List<Round> second = added.rounds.subList(5, added.rounds.size());
+
+		LogisticModel model = new LogisticModel();
+		model.train(background);
+		model.storeModel();
+		model.addTrainingRounds(first);
+		Map<String,Double> stored = scores(model);
+		// Stores an overlay, which is collapsed into a flat model
+		model.storeModel();
+		assertEquals(stored, scores(model));
+		model.addTrainingRounds(second);
+
+		// The same updates on a chain of overlays
+		LogisticModel chain = new LogisticModel();
+		chain.train(background);
+		LogisticModel overlay = chain.overlay();
+		overlay.addTrainingRounds(first);
+		overlay = overlay.overlay();
+		overlay.addTrainingRounds(second);
+		assertEquals(scores(overlay), scores(model));
+		assertEquals(overlay.getVocabulary().size(), model.getVocabulary().size());
+
+		// The updates since the last storeModel() are discarded
+		model.retrieveModel();
+		assertEquals(stored, scores(model));
+	}
+
+	@Test
+	public void foldsOfAHandMadeSetHaveTheRatesOfTheirTrainingSessions() throws Exception {
+		File root = new File(folder.getRoot(), "folds");
+		String[] red = {"the red one", "the red one", "the red one", "the red one", "the red one"};
+		String[] blue = {"the blue one", "the blue one", "the blue one", "the blue one", "the blue one"};
+		TestData.writeSession(new File(root, "GameA"), red, new String[] {"heart", "heart", "heart", "wedge", "wedge"});
+		TestData.writeSession(new File(root, "GameB"), blue, new String[] {"heart", "wedge", "wedge", "wedge", "wedge"});
+		TestData.writeSession(new File(root, "GameC"), red, new String[] {"heart", "heart", "wedge", "wedge", "wedge"});
+		SessionSet set = new SessionSet(root);
+		Parameters.RIDGE = 1e-6;
+		LogisticModel full = new LogisticModel();
+		full.train(set);
+
+		// Holds out GameA
+		SessionSet training = new SessionSet(set);
+		Session testing = training.sessions.stream().filter(session -> session.name.equals("GameA")).findFirst().get();
+		training.sessions.remove(testing);
+		LogisticModel fold = full.fold(training, testing);
+		Round round = testing.rounds.get(0);
+		Referent heart = round.referents.get(0);
+		Referent wedge = round.referents.get(10);
+		assertEquals(TestData.score(5, 10), full.score("red", heart), 1e-5);
+		// "blue" does not occur in GameA, so its model is shared with the full model
+		int blueId = TokenDictionary.lookup("blue");
+		assertSame(full.wordModels.get(blueId), fold.wordModels.get(blueId));
+		assertEquals(TestData.score(1, 5), fold.score("blue", heart), 1e-5);
+		assertEquals(TestData.score(4, 5), fold.score("blue", wedge), 1e-5);
+		// "red" is retrained on GameC only, and "one" on GameB and GameC
+		assertEquals(TestData.score(2, 5), fold.score("red", heart), 1e-5);
+		assertEquals(TestData.score(3, 5), fold.score("red", wedge), 1e-5);
+		assertEquals(TestData.score(3, 10), fold.score("one", heart), 1e-5);
+		assertEquals(TestData.score(7, 10), fold.score("one", wedge), 1e-5);
+		// The counts of GameA are subtracted
+		assertEquals(5, fold.getVocabulary().getCount(TokenDictionary.lookup("red"), 0));
+		assertEquals(10, fold.getVocabulary().getCount(TokenDictionary.lookup("one"), 0));
+		assertEquals(15, full.getVocabulary().getCount(TokenDictionary.lookup("one"), 0));
+	}
+
+	@Test
+	public void overlayOfAHandMadeSetHasTheRatesOfAllRounds() throws Exception {
+		File root = new File(folder.getRoot(), "handmade");
+		String[] red = {"the red one", "the red one", "the red one", "the red one", "the red one"};
+		String[] blue = {"the blue one", "the blue one", "the blue one", "the blue one", "the blue one"};
+		TestData.writeSession(new File(root, "GameA"), red, new String[] {"heart", "heart", "heart", "wedge", "wedge"});
+		TestData.writeSession(new File(root, "GameB"), blue, new String[] {"heart", "wedge", "wedge", "wedge", "wedge"});
+		File dir = new File(folder.getRoot(), "GameD");
+		TestData.writeSession(dir, red, new String[] {"heart", "heart", "heart", "heart", "heart"});
+		Parameters.RIDGE = 1e-6;
+		LogisticModel model = new LogisticModel();
+		model.train(new SessionSet(root));
+		Session session = new Session(dir);
+		Referent heart = session.rounds.get(0).referents.get(0);
+		Referent wedge = session.rounds.get(0).referents.get(10);
+
+		LogisticModel overlay = model.overlay();
+		overlay.addTrainingRounds(session.rounds);
+		// "red" now occurs in 10 rounds, where the target was a heart in 8
+		assertEquals(TestData.score(8, 10), overlay.score("red", heart), 1e-5);
+		assertEquals(TestData.score(2, 10), overlay.score("red", wedge), 1e-5);
+		// "one" occurs in all 15 rounds, with 9 hearts as targets
+		assertEquals(TestData.score(9, 15), overlay.score("one", heart), 1e-5);
+		// "blue" is not retrained
+		assertEquals(TestData.score(1, 5), overlay.score("blue", heart), 1e-5);
+		assertEquals(10, overlay.getVocabulary().getCount(TokenDictionary.lookup("red"), 0));
+
+		// The background still has the rates of its own rounds
+		assertEquals(TestData.score(3, 5), model.score("red", heart), 1e-5);
+		assertEquals(TestData.score(4, 10), model.score("one", heart), 1e-5);
+		assertEquals(5, model.getVocabulary().getCount(TokenDictionary.lookup("red"), 0));
+
+		// The same through storeModel() and retrieveModel()
+		model.storeModel();
+		model.addTrainingRounds(session.rounds);
+		assertEquals(TestData.score(8, 10), model.score("red", heart), 1e-5);
+		model.retrieveModel();
+		assertEquals(TestData.score(3, 5), model.score("red", heart), 1e-5);
+	}
+
+}
@@ -0,0 +1,186 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import se.kth.speech.coin.tangrams.data.Parameters;
+import se.kth.speech.coin.tangrams.data.ParametersRule;
+import se.kth.speech.coin.tangrams.data.Referent;
+import se.kth.speech.coin.tangrams.data.Round;
+import se.kth.speech.coin.tangrams.data.Session;
+import se.kth.speech.coin.tangrams.data.SessionSet;
+import se.kth.speech.coin.tangrams.data.TestData;
+
+public class ModelSnapshotTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Rule
+	public ParametersRule parameters = new ParametersRule();
+
+	private SessionSet set;
+
+	@Before
+	public void writeSessions() throws IOException {
+		Random random = new Random(7);
+		for (int s = 0; s < 3; s++) {
+			TestData.writeSession(new File(folder.getRoot(), "Game" + s), random, 8);
+		}
+		set = new SessionSet(folder.getRoot());
+		Parameters.NATIVE_LOGISTIC = true;
+	}
+
+	private LogisticModel train(boolean cache) throws Exception {
+		Parameters.USE_MODEL_CACHE = cache;
+		LogisticModel model = new LogisticModel();
+		model.train(set);
+		return model;
+	}
+
+	private File getFile() throws IOException {
+		return ModelSnapshot.getFile(set.getSource(), ModelSnapshot.key(set.getDigest()));
+	}
+
+	private static void assertSameModels(ModelSnapshot expected, ModelSnapshot actual) {
+		assertEquals(expected.shapes, actual.shapes);
+		assertArrayEquals(expected.counts.getWordIds(), actual.counts.getWordIds());
+		for (int word : expected.counts.getWordIds()) {
+			assertEquals(expected.counts.getCount(word, 0), actual.counts.getCount(word, 0));
+		}
+		assertEquals(expected.models.keySet(), actual.models.keySet());
+		for (Map.Entry<Integer,RidgeWordClassifier> entry : expected.models.entrySet()) {
+			RidgeWordClassifier e = entry.getValue();
+			RidgeWordClassifier a = actual.models.get(entry.getKey());
+			assertEquals(e.getIntercept(), a.getIntercept(), 0);
+			assertArrayEquals(e.getShapeCoef(), a.getShapeCoef(), 0);
+			assertArrayEquals(e.getFeatureCoef(), a.getFeatureCoef(), 0);
+		}
+		assertEquals(expected.wekaModels.keySet(), actual.wekaModels.keySet());
+		assertEquals(expected.power, actual.power);
+	}
+
+	/**
+	 * Checks that two models give the same scores to every referent
+	 */
+	private void assertSameScores(LogisticModel expected, LogisticModel actual) throws Exception {
+		for (int word : expected.getVocabulary().getWordIds()) {
+			for (Session session : set.sessions) {
+				for (Round round : session.rounds) {
+					for (Referent ref : round.referents) {
+						assertEquals(expected.score(word, ref), actual.score(word, ref), 0);
+					}
+				}
+			}
+		}
+	}
+
+	@Test
+	public void cachedModelIsTheTrainedModel() throws Exception {
+		ModelSnapshot trained = train(false).snapshot();
+		assertFalse(trained.models.isEmpty());
+		assertFalse(getFile().exists());
+		assertSameModels(trained, train(true).snapshot());
+		assertTrue(getFile().isFile());
+		ModelSnapshot read = ModelSnapshot.read(getFile(), ModelSnapshot.key(set.getDigest()));
+		assertNotNull(read);
+		assertSameModels(trained, read);
+		// The second model is loaded from the cache
+		assertSameModels(trained, train(true).snapshot());
+	}
+
+	@Test
+	public void cachedWekaModelIsTheTrainedModel() throws Exception {
+		Parameters.NATIVE_LOGISTIC = false;
+		// Some of the words are trained with ParallelLogistic
+		Parameters.PARALLEL_MODEL_INSTANCES = 200;
+		LogisticModel trained = train(false);
+		assertFalse(trained.snapshot().wekaModels.isEmpty());
+		assertTrue(trained.wordModels.values().stream().anyMatch(model -> ((WekaWordClassifier) model).logistic instanceof ParallelLogistic));
+		train(true);
+		assertTrue(getFile().isFile());
+		LogisticModel cached = train(true);
+		assertTrue(cached.wordModels.values().stream().allMatch(model -> model instanceof WekaWordClassifier));
+		assertSameScores(trained, cached);
+		assertEquals(trained.power, cached.power);
+	}
+
+	@Test
+	public void keyDependsOnSettings() throws Exception {
+		byte[] key = ModelSnapshot.key(set.getDigest());
+		Parameters.NATIVE_LOGISTIC = false;
+		byte[] wekaKey = ModelSnapshot.key(set.getDigest());
+		assertFalse(Arrays.equals(key, wekaKey));
+		Parameters.PARALLEL_MODEL_INSTANCES++;
+		assertFalse(Arrays.equals(wekaKey, ModelSnapshot.key(set.getDigest())));
+	}
+
+	@Test
+	public void corruptSnapshotIsIgnoredOrRead() throws Exception {
+		Parameters.NATIVE_LOGISTIC = false;
+		train(true);
+		File file = getFile();
+		byte[] key = ModelSnapshot.key(set.getDigest());
+		byte[] bytes = Files.readAllBytes(file.toPath());
+		for (int length = 0; length < bytes.length; length += 1 + length / 8) {
+			Files.write(file.toPath(), Arrays.copyOf(bytes, length));
+			assertNull("Truncated to " + length, ModelSnapshot.read(file, key));
+		}
+		// The header (magic, version, key and number of features) is checked separately
+		int header = 13 + key.length;
+		Random random = new Random(8);
+		int[] values = {-1, Integer.MIN_VALUE, Integer.MAX_VALUE, 1 << 28, 0};
+		for (int i = 0; i < 500; i++) {
+			byte[] corrupt = bytes.clone();
+			int offset = header + random.nextInt(corrupt.length - header - 4);
+			int value = i % 2 == 0 ? values[random.nextInt(values.length)] : random.nextInt();
+			ByteBuffer.wrap(corrupt).putInt(offset, value);
+			Files.write(file.toPath(), corrupt);
+			// A corrupt snapshot must either be rejected or decode to some models, never throw
+			ModelSnapshot.read(file, key);
+		}
+	}
+
+	@Test
+	public void cachedModelsOfAHandMadeSessionHaveItsRates() throws Exception {
+		File root = new File(folder.getRoot(), "handmade");
+		String[] texts = {"the red one", "the red one", "the blue one", "the red one", "the blue one", "the red one", "the blue one", "the red one"};
+		String[] targets = {"heart", "heart", "wedge", "heart", "heart", "wedge", "wedge", "heart"};
+		TestData.writeSession(new File(root, "Game0"), texts, targets);
+		set = new SessionSet(root);
+		Referent heart = set.sessions.get(0).rounds.get(0).referents.get(0);
+		Referent wedge = set.sessions.get(0).rounds.get(0).referents.get(10);
+		Parameters.RIDGE = 1e-6;
+		for (boolean nativeLogistic : new boolean[] {true, false}) {
+			Parameters.NATIVE_LOGISTIC = nativeLogistic;
+			assertFalse(getFile().exists());
+			train(true);
+			assertTrue(getFile().isFile());
+			// Loaded from the cache
+			LogisticModel cached = train(true);
+			assertEquals(TestData.score(4, 5), cached.score("red", heart), 1e-5);
+			assertEquals(TestData.score(1, 5), cached.score("red", wedge), 1e-5);
+			assertEquals(TestData.score(1, 3), cached.score("blue", heart), 1e-5);
+			assertEquals(TestData.score(3, 8), cached.score("one", wedge), 1e-5);
+			assertEquals(0.5, cached.score("green", heart), 0);
+		}
+	}
+
+}
@@ -0,0 +1,102 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import weka.classifiers.functions.Logistic;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import weka.core.Utils;
+
+public class ParallelLogisticTest {
+
+	private int partitionSize;
+	private Instances data;
+
+	@Before
+	public void createData() {
+		partitionSize = ParallelLogistic.PARTITION_SIZE;
+		ParallelLogistic.PARTITION_SIZE = 50;
+
+		// A nominal attribute with missing values, a constant attribute and a few numeric ones, like the referent features
+		ArrayList<Attribute> atts = new ArrayList<>();
+		atts.add(new Attribute("shape", Arrays.asList("a", "b", "c")));
+		atts.add(new Attribute("size"));
+		atts.add(new Attribute("red"));
+		atts.add(new Attribute("posx"));
+		atts.add(new Attribute("constant"));
+		atts.add(new Attribute("target", Arrays.asList("true", "false")));
+		data = new Instances("Dataset", atts, 1000);
+		data.setClassIndex(5);
+		Random random = new Random(5);
+		for (int i = 0; i < 1000; i++) {
+			double[] values = new double[6];
+			values[0] = random.nextInt(10) == 0 ? Utils.missingValue() : random.nextInt(3);
+			values[1] = random.nextDouble();
+			values[2] = random.nextInt(256);
+			values[3] = random.nextGaussian();
+			values[4] = 1;
+			double z = 2 * values[1] - values[3] + (values[0] == 1 ? 1 : 0) - 1;
+			values[5] = random.nextDouble() < 1 / (1 + Math.exp(-z)) ? 0 : 1;
+			data.add(new DenseInstance(random.nextInt(3) + 1, values));
+		}
+	}
+
+	@After
+	public void restorePartitionSize() {
+		ParallelLogistic.PARTITION_SIZE = partitionSize;
+	}
+
+	/**
+	 * Only the summation order differs from Weka, so the probabilities agree up to rounding (about 1e-16 on this data)
+	 */
+	@Test
+	public void matchesWeka() throws Exception {
+		for (double ridge : new double[] {1e-8, 100}) {
+			Logistic weka = new Logistic();
+			weka.setRidge(ridge);
+			weka.buildClassifier(data);
+			ParallelLogistic parallel = new ParallelLogistic();
+			parallel.setRidge(ridge);
+			parallel.buildClassifier(data);
+			for (int i = 0; i < data.numInstances(); i++) {
+				assertArrayEquals(weka.distributionForInstance(data.instance(i)), parallel.distributionForInstance(data.instance(i)), 1e-9);
+			}
+		}
+	}
+
+	@Test
+	public void sameModelWithAnyNumberOfThreads() throws Exception {
+		ParallelLogistic serial = new ParallelLogistic();
+		serial.setRidge(100);
+		serial.buildClassifier(data);
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			ParallelLogistic parallel = pool.submit(() -> {
+				ParallelLogistic model = new ParallelLogistic();
+				model.setRidge(100);
+				model.buildClassifier(data);
+				return model;
+			}).get();
+			double[][] expected = serial.coefficients();
+			double[][] actual = parallel.coefficients();
+			assertEquals(expected.length, actual.length);
+			for (int i = 0; i < expected.length; i++) {
+				assertArrayEquals(expected[i], actual[i], 0);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+}
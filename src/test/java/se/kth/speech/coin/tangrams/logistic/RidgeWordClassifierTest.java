@@ -0,0 +1,148 @@
+package se.kth.speech.coin.tangrams.logistic;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import se.kth.speech.coin.tangrams.data.FeatureStore;
+import se.kth.speech.coin.tangrams.data.Parameters;
+import se.kth.speech.coin.tangrams.data.ParametersRule;
+import se.kth.speech.coin.tangrams.data.Referent;
+import se.kth.speech.coin.tangrams.data.Round;
+import se.kth.speech.coin.tangrams.data.SessionSet;
+import se.kth.speech.coin.tangrams.data.TestData;
+
+public class RidgeWordClassifierTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Rule
+	public ParametersRule parameters = new ParametersRule();
+
+	private static WordInstances allRows(FeatureStore features) {
+		WordInstances instances = new WordInstances(features.size());
+		for (int row = 0; row < features.size(); row++) {
+			instances.add(row, features.isTarget(row) ? 19 : 1);
+		}
+		return instances;
+	}
+
+	private static double[] coefficients(RidgeWordClassifier classifier) {
+		int k = classifier.getShapeCoef().length;
+		double[] c = new double[k + RidgeWordClassifier.FEATURES.length + 1];
+		c[0] = classifier.getIntercept();
+		System.arraycopy(classifier.getShapeCoef(), 0, c, 1, k);
+		System.arraycopy(classifier.getFeatureCoef(), 0, c, k + 1, RidgeWordClassifier.FEATURES.length);
+		return c;
+	}
+
+	@Test
+	public void partitionedFitMatchesSerialFit() throws Exception {
+		FeatureStore features = TestData.randomFeatures(new Random(1), 1000, 10);
+		WordInstances instances = allRows(features);
+		assertTrue(instances.size() > 2 * RidgeWordClassifier.PARTITION_SIZE);
+
+		Parameters.PARALLEL_MODEL_INSTANCES = Integer.MAX_VALUE;
+		double[] serial = coefficients(RidgeWordClassifier.train(features, instances, 100, null));
+
+		Parameters.PARALLEL_MODEL_INSTANCES = 1;
+		double[] partitioned = coefficients(RidgeWordClassifier.train(features, instances, 100, null));
+		ForkJoinPool pool = new ForkJoinPool(4);
+		double[] parallel;
+		try {
+			parallel = coefficients(pool.submit(() -> RidgeWordClassifier.train(features, instances, 100, null)).get());
+		} finally {
+			pool.shutdown();
+		}
+
+		// Only the summation order differs from the serial fit
+		assertArrayEquals(serial, partitioned, 1e-9);
+		// The partitions do not depend on the threads, so the parallel fit is exactly the partitioned one
+		assertArrayEquals(partitioned, parallel, 0);
+	}
+
+	@Test
+	public void smallModelsAreNotPartitioned() throws Exception {
+		FeatureStore features = TestData.randomFeatures(new Random(2), 100, 10);
+		WordInstances instances = allRows(features);
+		Parameters.PARALLEL_MODEL_INSTANCES = Integer.MAX_VALUE;
+		double[] serial = coefficients(RidgeWordClassifier.train(features, instances, 100, null));
+		Parameters.PARALLEL_MODEL_INSTANCES = instances.size() + 1;
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			double[] pooled = coefficients(pool.submit(() -> RidgeWordClassifier.train(features, instances, 100, null)).get());
+			assertArrayEquals(serial, pooled, 0);
+		} finally {
+			pool.shutdown();
+		}
+		assertEquals(TestData.SHAPES.size() + RidgeWordClassifier.FEATURES.length + 1, serial.length);
+	}
+
+	private static LogisticModel train(SessionSet set, boolean nativeLogistic) throws Exception {
+		Parameters.NATIVE_LOGISTIC = nativeLogistic;
+		LogisticModel model = new LogisticModel();
+		model.train(set);
+		return model;
+	}
+
+	@Test
+	public void nativeFitMatchesWeka() throws Exception {
+		Random random = new Random(4);
+		for (int s = 0; s < 3; s++) {
+			TestData.writeSession(new File(folder.getRoot(), "Game" + s), random, 10);
+		}
+		SessionSet set = new SessionSet(folder.getRoot());
+		Parameters.USE_MODEL_CACHE = false;
+		for (double ridge : new double[] {100, 1}) {
+			Parameters.RIDGE = ridge;
+			LogisticModel weka = train(set, false);
+			LogisticModel ridgeModel = train(set, true);
+			int[] words = weka.getVocabulary().getWordIds();
+			assertTrue(words.length > 5);
+			for (int i = 0; i < 50; i++) {
+				Referent ref = TestData.randomRound(random, 1).referents.get(0);
+				for (int word : words) {
+					// Weka's quasi-Newton optimizer stops earlier than the Newton steps, the scores differ by up to about 1e-5
+					assertEquals("ridge " + ridge + " word " + word, weka.score(word, ref), ridgeModel.score(word, ref), 1e-4);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void fitsTheTargetRatesOfAHandMadeSession() throws Exception {
+		String[] texts = {"the red one", "the red one", "the blue one", "the red one", "the blue one", "the red one", "the blue one", "the red one"};
+		String[] targets = {"heart", "heart", "wedge", "heart", "heart", "wedge", "wedge", "heart"};
+		TestData.writeSession(new File(folder.getRoot(), "Game0"), texts, targets);
+		SessionSet set = new SessionSet(folder.getRoot());
+		Parameters.USE_MODEL_CACHE = false;
+		Parameters.RIDGE = 1e-6;
+		Round round = set.sessions.get(0).rounds.get(0);
+		Referent heart = round.referents.get(0);
+		Referent wedge = round.referents.get(10);
+		for (boolean nativeLogistic : new boolean[] {true, false}) {
+			LogisticModel model = train(set, nativeLogistic);
+			// "red" occurs in 5 rounds, where the target was a heart in 4 and a wedge in 1
+			assertEquals(76 / 122.0, model.score("red", heart), 1e-5);
+			assertEquals(TestData.score(1, 5), model.score("red", wedge), 1e-5);
+			// "blue" occurs in 3 rounds, with 1 heart and 2 wedges as targets
+			assertEquals(TestData.score(1, 3), model.score("blue", heart), 1e-5);
+			assertEquals(TestData.score(2, 3), model.score("blue", wedge), 1e-5);
+			// "one" occurs in all 8 rounds
+			assertEquals(TestData.score(5, 8), model.score("one", heart), 1e-5);
+			assertEquals(TestData.score(3, 8), model.score("one", wedge), 1e-5);
+			// Unknown words have no model
+			assertEquals(0.5, model.score("green", heart), 0);
+		}
+	}
+
+}